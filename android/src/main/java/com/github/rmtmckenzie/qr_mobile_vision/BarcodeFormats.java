@@ -6,6 +6,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 
 public enum BarcodeFormats {
@@ -32,15 +33,28 @@ public enum BarcodeFormats {
     public final int intValue;
 
     private static Map<String, Integer> formatsMap;
+    private static Map<Integer, String> namesMap;
 
     static {
         BarcodeFormats[] values = BarcodeFormats.values();
         formatsMap = new HashMap<>(values.length * 4 / 3);
+        namesMap = new HashMap<>(values.length * 4 / 3);
         for (BarcodeFormats value : values) {
             formatsMap.put(value.name(), value.intValue);
+            namesMap.put(value.intValue, value.name());
         }
     }
 
+    /**
+     * Return the name of a single ML Kit barcode format, as used on the dart side.
+     *
+     * @param format - format of a detected barcode
+     * @return name of the format, or null if it is not one this plugin knows about.
+     */
+    static String nameOf(int format) {
+        return namesMap.get(format);
+    }
+
     /**
      * Return the integer value resuling from OR-ing all of the values
      * of the supplied strings.
@@ -64,8 +78,28 @@ public enum BarcodeFormats {
     }
 
     static BarcodeScannerOptions optionsFromStringList(List<String> strings) {
+        return optionsFromStringList(strings, null);
+    }
+
+    /**
+     * Same as {@link #optionsFromStringList(List)} but runs detection on the supplied
+     * executor rather than ML Kit's internal one.
+     *
+     * @param strings  - list of strings representing the various formats
+     * @param executor - executor to run detection on, or null for ML Kit's default
+     * @return scanner options for the given formats.
+     */
+    static BarcodeScannerOptions optionsFromStringList(List<String> strings, Executor executor) {
+        BarcodeScannerOptions.Builder builder = builderFromStringList(strings);
+        if (executor != null) {
+            builder.setExecutor(executor);
+        }
+        return builder.build();
+    }
+
+    private static BarcodeScannerOptions.Builder builderFromStringList(List<String> strings) {
         if (strings == null) {
-            return new BarcodeScannerOptions.Builder().setBarcodeFormats(ALL_FORMATS.intValue).build();
+            return new BarcodeScannerOptions.Builder().setBarcodeFormats(ALL_FORMATS.intValue);
         }
 
         List<Integer> ints = new ArrayList<>(strings.size());
@@ -77,11 +111,11 @@ public enum BarcodeFormats {
         }
 
         if (ints.size() == 0) {
-            return new BarcodeScannerOptions.Builder().setBarcodeFormats(ALL_FORMATS.intValue).build();
+            return new BarcodeScannerOptions.Builder().setBarcodeFormats(ALL_FORMATS.intValue);
         }
 
         if (ints.size() == 1) {
-            return new BarcodeScannerOptions.Builder().setBarcodeFormats(ints.get(0)).build();
+            return new BarcodeScannerOptions.Builder().setBarcodeFormats(ints.get(0));
         }
 
         int first = ints.get(0);
@@ -93,7 +127,7 @@ public enum BarcodeFormats {
 
 
         return new BarcodeScannerOptions.Builder()
-            .setBarcodeFormats(first, rest).build();
+            .setBarcodeFormats(first, rest);
     }
 
 
@@ -0,0 +1,259 @@
+package com.github.rmtmckenzie.qr_mobile_vision;
+
+import android.graphics.Rect;
+import android.media.Image;
+
+import androidx.annotation.GuardedBy;
+
+import com.google.mlkit.vision.common.InputImage;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cheap first stage in front of the scanner that decides whether a frame is worth decoding
+ * at all, and which part of it.
+ * <p>
+ * The Y plane is sampled on a sparse grid and split into cells. Barcodes are made of sharp,
+ * high contrast edges, so cells whose mean gradient is over a threshold are candidates. Frames
+ * without any candidate cell are skipped; otherwise only the region around the candidate cells
+ * is decoded, if it is small enough to be worth cropping. Every {@code auditInterval}th frame
+ * that would be skipped is decoded in full anyway, to measure how many codes the cascade misses.
+ */
+class CandidateCascade {
+  private static final int CELL_SIZE = 32;
+  private static final int SAMPLE_STEP = 4;
+  /**
+   * Regions covering more than this fraction of the frame are decoded whole, as copying them
+   * out costs more than the smaller decode saves.
+   */
+  private static final float MAX_CROP_FRACTION = 0.6f;
+
+  enum Verdict {
+    /**
+     * No candidate region, don't decode.
+     */
+    SKIP,
+    /**
+     * No candidate region, but decode in full to check the cascade isn't missing codes.
+     */
+    AUDIT,
+    /**
+     * Decode only {@link Decision#region()}.
+     */
+    CROP,
+    FULL
+  }
+
+  /**
+   * The verdict and, for {@link Verdict#CROP}, the bounds of the region to decode.
+   */
+  static class Decision {
+    final Verdict verdict;
+    final int left;
+    final int top;
+    final int right;
+    final int bottom;
+
+    private Decision(Verdict verdict) {
+      this(verdict, 0, 0, 0, 0);
+    }
+
+    private Decision(Verdict verdict, int left, int top, int right, int bottom) {
+      this.verdict = verdict;
+      this.left = left;
+      this.top = top;
+      this.right = right;
+      this.bottom = bottom;
+    }
+
+    /**
+     * @return the region to decode, or null to decode the whole frame.
+     */
+    Rect region() {
+      return verdict == Verdict.CROP ? new Rect(left, top, right, bottom) : null;
+    }
+  }
+
+  private final float gradientThreshold;
+  private final int minCells;
+  private final int auditInterval;
+
+  private final AtomicLong frames = new AtomicLong();
+  private final AtomicLong skipped = new AtomicLong();
+  private final AtomicLong cropped = new AtomicLong();
+  private final AtomicLong audited = new AtomicLong();
+  private final AtomicLong auditMisses = new AtomicLong();
+  @GuardedBy("this")
+  private int framesSinceAudit;
+
+  /**
+   * @param sensitivity   0 to 1; higher lets weaker edges through, skipping fewer frames but
+   *                      missing fewer codes.
+   * @param auditInterval decode every this many would-be-skipped frames in full; 0 for never.
+   */
+  CandidateCascade(float sensitivity, int auditInterval) {
+    float clamped = Math.max(0f, Math.min(1f, sensitivity));
+    this.gradientThreshold = 6 + (1 - clamped) * 36;
+    this.minCells = clamped >= 0.75f ? 1 : 2;
+    this.auditInterval = Math.max(0, auditInterval);
+  }
+
+  /**
+   * @param spec the "candidateCascade" argument of start, or null to decode every frame.
+   */
+  static CandidateCascade fromMap(Map<?, ?> spec) {
+    if (spec == null) {
+      return null;
+    }
+    Object sensitivity = spec.get("sensitivity");
+    Object auditInterval = spec.get("auditInterval");
+    return new CandidateCascade(
+      sensitivity instanceof Number ? ((Number) sensitivity).floatValue() : 0.5f,
+      auditInterval instanceof Number ? ((Number) auditInterval).intValue() : 30);
+  }
+
+  Decision inspect(Image image) {
+    frames.incrementAndGet();
+    Image.Plane plane = image.getPlanes()[0];
+    ByteBuffer buffer = plane.getBuffer();
+    int rowStride = plane.getRowStride();
+    int pixelStride = plane.getPixelStride();
+    int width = image.getWidth();
+    int height = image.getHeight();
+
+    int cellsX = width / CELL_SIZE;
+    int cellsY = height / CELL_SIZE;
+    int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = -1, maxY = -1;
+    int candidates = 0;
+    for (int cy = 0; cy < cellsY; ++cy) {
+      for (int cx = 0; cx < cellsX; ++cx) {
+        if (cellGradient(buffer, rowStride, pixelStride, cx * CELL_SIZE, cy * CELL_SIZE) > gradientThreshold) {
+          candidates++;
+          minX = Math.min(minX, cx);
+          minY = Math.min(minY, cy);
+          maxX = Math.max(maxX, cx);
+          maxY = Math.max(maxY, cy);
+        }
+      }
+    }
+
+    if (candidates < minCells) {
+      if (dueForAudit()) {
+        audited.incrementAndGet();
+        return new Decision(Verdict.AUDIT);
+      }
+      skipped.incrementAndGet();
+      return new Decision(Verdict.SKIP);
+    }
+
+    // one cell of margin for the quiet zone and edges that fell under the threshold, aligned
+    // to even coordinates for the subsampled chroma planes
+    int left = Math.max(0, (minX - 1) * CELL_SIZE);
+    int top = Math.max(0, (minY - 1) * CELL_SIZE);
+    int right = Math.min(width, (maxX + 2) * CELL_SIZE) & ~1;
+    int bottom = Math.min(height, (maxY + 2) * CELL_SIZE) & ~1;
+    if ((long) (right - left) * (bottom - top) > MAX_CROP_FRACTION * width * height) {
+      return new Decision(Verdict.FULL);
+    }
+    cropped.incrementAndGet();
+    return new Decision(Verdict.CROP, left, top, right, bottom);
+  }
+
+  /**
+   * Counts a would-be-skipped frame towards the next audit. Frames can be inspected on several
+   * pool threads at once, so only the count is shared between them.
+   */
+  private synchronized boolean dueForAudit() {
+    if (auditInterval > 0 && ++framesSinceAudit >= auditInterval) {
+      framesSinceAudit = 0;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Called with the result of decoding an {@link Verdict#AUDIT} frame.
+   */
+  void audited(int barcodeCount) {
+    if (barcodeCount > 0) {
+      auditMisses.incrementAndGet();
+    }
+  }
+
+  Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("frames", frames.get());
+    stats.put("skipped", skipped.get());
+    stats.put("cropped", cropped.get());
+    stats.put("audited", audited.get());
+    stats.put("auditMisses", auditMisses.get());
+    return stats;
+  }
+
+  /**
+   * Mean absolute horizontal plus vertical difference between samples SAMPLE_STEP apart
+   * within the cell at (left, top).
+   */
+  private static float cellGradient(ByteBuffer buffer, int rowStride, int pixelStride, int left, int top) {
+    int sum = 0;
+    int count = 0;
+    for (int y = top; y < top + CELL_SIZE - SAMPLE_STEP; y += SAMPLE_STEP) {
+      int row = y * rowStride;
+      int nextRow = (y + SAMPLE_STEP) * rowStride;
+      for (int x = left; x < left + CELL_SIZE - SAMPLE_STEP; x += SAMPLE_STEP) {
+        int p = buffer.get(row + x * pixelStride) & 0xFF;
+        int right = buffer.get(row + (x + SAMPLE_STEP) * pixelStride) & 0xFF;
+        int below = buffer.get(nextRow + x * pixelStride) & 0xFF;
+        sum += Math.abs(right - p) + Math.abs(below - p);
+        count++;
+      }
+    }
+    return count == 0 ? 0 : (float) sum / count;
+  }
+
+  /**
+   * Copies {@code region} of a YUV_420_888 image into an NV21 image for the scanner.
+   */
+  static InputImage crop(Image image, Rect region, int rotation) {
+    int width = region.width();
+    int height = region.height();
+    byte[] nv21 = new byte[width * height * 3 / 2];
+    Image.Plane[] planes = image.getPlanes();
+
+    Image.Plane yPlane = planes[0];
+    ByteBuffer yBuffer = yPlane.getBuffer().duplicate();
+    int yRowStride = yPlane.getRowStride();
+    int yPixelStride = yPlane.getPixelStride();
+    int out = 0;
+    for (int row = region.top; row < region.bottom; ++row) {
+      int start = row * yRowStride + region.left * yPixelStride;
+      if (yPixelStride == 1) {
+        yBuffer.position(start);
+        yBuffer.get(nv21, out, width);
+        out += width;
+      } else {
+        for (int x = 0; x < width; ++x) {
+          nv21[out++] = yBuffer.get(start + x * yPixelStride);
+        }
+      }
+    }
+
+    ByteBuffer uBuffer = planes[1].getBuffer();
+    ByteBuffer vBuffer = planes[2].getBuffer();
+    int uRowStride = planes[1].getRowStride();
+    int uPixelStride = planes[1].getPixelStride();
+    int vRowStride = planes[2].getRowStride();
+    int vPixelStride = planes[2].getPixelStride();
+    for (int row = region.top / 2; row < region.bottom / 2; ++row) {
+      for (int col = region.left / 2; col < region.right / 2; ++col) {
+        nv21[out++] = vBuffer.get(row * vRowStride + col * vPixelStride);
+        nv21[out++] = uBuffer.get(row * uRowStride + col * uPixelStride);
+      }
+    }
+
+    return InputImage.fromByteArray(nv21, width, height, rotation, InputImage.IMAGE_FORMAT_NV21);
+  }
+}
@@ -0,0 +1,230 @@
+package com.github.rmtmckenzie.qr_mobile_vision;
+
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.util.Log;
+import android.util.Range;
+import android.util.Rational;
+
+import java.util.Map;
+
+/**
+ * How the camera is driven while scanning.
+ * <p>
+ * The default leaves exposure and focus to the camera, which suits codes held in front of it.
+ * The conveyor profile is for codes moving past a fixed camera: it runs at the highest frame
+ * rate the camera offers, keeps exposures short enough not to blur moving labels, fixes focus
+ * at the distance the labels pass at and lets the detector work on several frames at once.
+ */
+class CaptureProfile {
+  private static final String TAG = "cgr.qrmv.CaptureProfile";
+
+  static final long DEFAULT_MAX_EXPOSURE_NS = 2_000_000L;
+  static final int DEFAULT_FRAMES_IN_FLIGHT = 2;
+  /**
+   * Used on cameras without manual sensor control, where exposure can only be pushed down
+   * by asking auto-exposure for a darker image.
+   */
+  private static final float FALLBACK_COMPENSATION_EV = -1f;
+
+  static final CaptureProfile DEFAULT = new CaptureProfile(false, 0, 0, 1);
+
+  final boolean conveyor;
+  /**
+   * Longest exposure allowed, in nanoseconds.
+   */
+  final long maxExposureNs;
+  /**
+   * Distance to fix focus at in metres, or 0 to keep autofocus.
+   */
+  final float focusDistance;
+  final int framesInFlight;
+
+  private CaptureProfile(boolean conveyor, long maxExposureNs, float focusDistance, int framesInFlight) {
+    this.conveyor = conveyor;
+    this.maxExposureNs = maxExposureNs;
+    this.focusDistance = focusDistance;
+    this.framesInFlight = framesInFlight;
+  }
+
+  /**
+   * @param map the "captureProfile" argument of start, or null for the default profile.
+   */
+  static CaptureProfile fromMap(Map<?, ?> map) {
+    if (map == null || !"CONVEYOR".equals(map.get("mode"))) {
+      return DEFAULT;
+    }
+    Object maxExposureUs = map.get("maxExposureUs");
+    Object focusDistance = map.get("focusDistance");
+    Object framesInFlight = map.get("framesInFlight");
+    return new CaptureProfile(true,
+      maxExposureUs instanceof Number ? ((Number) maxExposureUs).longValue() * 1000 : DEFAULT_MAX_EXPOSURE_NS,
+      focusDistance instanceof Number ? ((Number) focusDistance).floatValue() : 0,
+      framesInFlight instanceof Number ? Math.max(1, ((Number) framesInFlight).intValue()) : DEFAULT_FRAMES_IN_FLIGHT);
+  }
+
+  /**
+   * Sets up a repeating request for this profile. Must be called after the default auto
+   * focus and exposure settings have been applied, which it overrides.
+   *
+   * @return the exposure cap to feed capture results to, or null if exposure needs no further
+   * management.
+   */
+  ExposureCap apply(CaptureRequest.Builder builder, CameraCharacteristics characteristics) {
+    if (!conveyor) {
+      return null;
+    }
+
+    Range<Integer> fpsRange = fastestFpsRange(characteristics);
+    if (fpsRange != null) {
+      Log.i(TAG, "Conveyor fps range " + fpsRange);
+      builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+    }
+
+    if (focusDistance > 0) {
+      Float minimumFocusDistance = characteristics.get(CameraCharacteristics.LENS_INFO_MINIMUM_FOCUS_DISTANCE);
+      if (minimumFocusDistance != null && minimumFocusDistance > 0) {
+        // focus distances are in diopters, and the minimum focus distance is the largest allowed
+        float diopters = Math.min(1f / focusDistance, minimumFocusDistance);
+        builder.set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_OFF);
+        builder.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
+        builder.set(CaptureRequest.LENS_FOCUS_DISTANCE, diopters);
+        Log.i(TAG, "Fixing focus at " + diopters + "D");
+      } else {
+        Log.w(TAG, "Camera has a fixed focus lens, ignoring focus distance");
+      }
+    }
+
+    Range<Long> exposureRange = characteristics.get(CameraCharacteristics.SENSOR_INFO_EXPOSURE_TIME_RANGE);
+    Range<Integer> sensitivityRange = characteristics.get(CameraCharacteristics.SENSOR_INFO_SENSITIVITY_RANGE);
+    if (hasCapability(characteristics, CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_MANUAL_SENSOR)
+      && exposureRange != null && sensitivityRange != null) {
+      long frameDurationNs = fpsRange == null ? 0 : 1_000_000_000L / fpsRange.getUpper();
+      return new ExposureCap(builder, exposureRange.clamp(maxExposureNs), sensitivityRange, frameDurationNs);
+    }
+
+    Range<Integer> compensationRange = characteristics.get(CameraCharacteristics.CONTROL_AE_COMPENSATION_RANGE);
+    Rational compensationStep = characteristics.get(CameraCharacteristics.CONTROL_AE_COMPENSATION_STEP);
+    if (compensationRange != null && compensationStep != null && compensationStep.floatValue() > 0) {
+      int steps = compensationRange.clamp(Math.round(FALLBACK_COMPENSATION_EV / compensationStep.floatValue()));
+      builder.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, steps);
+      Log.i(TAG, "No manual sensor control, using exposure compensation of " + steps + " steps");
+    }
+    return null;
+  }
+
+  private static Range<Integer> fastestFpsRange(CameraCharacteristics characteristics) {
+    Range<Integer>[] ranges = characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+    if (ranges == null) {
+      return null;
+    }
+    Range<Integer> fastest = null;
+    for (Range<Integer> range : ranges) {
+      // a fixed range like [60, 60] beats [15, 60], which lets auto-exposure slow the frame
+      // rate - and lengthen exposures - in low light
+      if (fastest == null || range.getUpper() > fastest.getUpper()
+        || (range.getUpper().equals(fastest.getUpper()) && range.getLower() > fastest.getLower())) {
+        fastest = range;
+      }
+    }
+    return fastest;
+  }
+
+  private static boolean hasCapability(CameraCharacteristics characteristics, int capability) {
+    int[] capabilities = characteristics.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+    if (capabilities != null) {
+      for (int available : capabilities) {
+        if (available == capability) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Caps exposure time on cameras with manual sensor control.
+   * <p>
+   * Auto-exposure runs until it converges to meter the scene. While its exposure stays under
+   * the cap it is left running and watched, so that the cap kicks in if the light drops later.
+   * Once it chooses a longer exposure than the cap, it is switched off and the exposure set to
+   * the cap, with sensitivity raised to make up the same overall exposure. As auto-exposure
+   * can't follow the light while it is off, it is switched back on for a metering pass every
+   * {@link #REMETER_FRAMES} frames.
+   */
+  static class ExposureCap {
+    private static final int MAX_METERING_FRAMES = 30;
+    private static final int REMETER_FRAMES = 300;
+
+    private final CaptureRequest.Builder builder;
+    private final long maxExposureNs;
+    private final Range<Integer> sensitivityRange;
+    private final long frameDurationNs;
+    private final Integer autoExposureMode;
+    private int frames;
+    private boolean metering = true;
+    private boolean capped;
+
+    private ExposureCap(CaptureRequest.Builder builder, long maxExposureNs, Range<Integer> sensitivityRange,
+                        long frameDurationNs) {
+      this.builder = builder;
+      this.maxExposureNs = maxExposureNs;
+      this.sensitivityRange = sensitivityRange;
+      this.frameDurationNs = frameDurationNs;
+      this.autoExposureMode = builder.get(CaptureRequest.CONTROL_AE_MODE);
+    }
+
+    /**
+     * @return true if the request was changed and has to be submitted again.
+     */
+    boolean onCaptureCompleted(CaptureResult result) {
+      if (capped) {
+        if (++frames < REMETER_FRAMES) {
+          return false;
+        }
+        // the light may have changed since, let auto-exposure measure it again
+        capped = false;
+        metering = true;
+        frames = 0;
+        builder.set(CaptureRequest.CONTROL_AE_MODE,
+          autoExposureMode != null ? autoExposureMode : CameraMetadata.CONTROL_AE_MODE_ON);
+        return true;
+      }
+
+      Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+      boolean converged = aeState != null && (aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED
+        || aeState == CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED || aeState == CaptureResult.CONTROL_AE_STATE_LOCKED);
+      if (metering) {
+        if (!converged && ++frames < MAX_METERING_FRAMES) {
+          return false;
+        }
+        metering = false;
+        frames = 0;
+      } else if (!converged) {
+        // still running under the cap, only act on settled exposures
+        return false;
+      }
+
+      Long exposure = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+      Integer sensitivity = result.get(CaptureResult.SENSOR_SENSITIVITY);
+      if (exposure == null || sensitivity == null || exposure <= maxExposureNs) {
+        return false;
+      }
+
+      int cappedSensitivity = sensitivityRange.clamp((int) (sensitivity * (double) exposure / maxExposureNs));
+      Log.i(TAG, "Capping exposure " + exposure + "ns at ISO " + sensitivity + " to " + maxExposureNs
+        + "ns at ISO " + cappedSensitivity);
+      builder.set(CaptureRequest.CONTROL_AE_MODE, CameraMetadata.CONTROL_AE_MODE_OFF);
+      builder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, maxExposureNs);
+      builder.set(CaptureRequest.SENSOR_SENSITIVITY, cappedSensitivity);
+      if (frameDurationNs > 0) {
+        builder.set(CaptureRequest.SENSOR_FRAME_DURATION, frameDurationNs);
+      }
+      capped = true;
+      frames = 0;
+      return true;
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package com.github.rmtmckenzie.qr_mobile_vision;
+
+import androidx.annotation.GuardedBy;
+
+import com.google.mlkit.vision.barcode.BarcodeScanner;
+import com.google.mlkit.vision.barcode.BarcodeScanning;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decode worker pool and scanner cache shared by all reading sessions of a plugin instance.
+ * <p>
+ * Every scanner handed out runs its detection on the same bounded executor, so adding
+ * sessions shares the same CPU budget rather than each session getting its own threads.
+ * Scanners are cached by barcode format so sessions scanning for the same formats share
+ * one ML Kit client.
+ */
+class DecodePool {
+  private final ExecutorService executor;
+
+  @GuardedBy("this")
+  private final Map<Integer, CachedScanner> scanners = new HashMap<>();
+
+  DecodePool() {
+    int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4));
+    executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "qrmv-decode-" + count.incrementAndGet());
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+      }
+    });
+  }
+
+  ExecutorService executor() {
+    return executor;
+  }
+
+  /**
+   * Returns a scanner for the given formats, creating it if no other session uses those formats.
+   * Each lease must be released exactly once.
+   */
+  synchronized Lease acquire(List<String> formatStrings) {
+    int key = BarcodeFormats.intFromStringList(formatStrings);
+    if (key == 0) {
+      key = BarcodeFormats.ALL_FORMATS.intValue;
+    }
+
+    CachedScanner cached = scanners.get(key);
+    if (cached == null) {
+      cached = new CachedScanner(BarcodeScanning.getClient(BarcodeFormats.optionsFromStringList(formatStrings, executor)));
+      scanners.put(key, cached);
+    }
+    cached.references++;
+    return new Lease(key, cached.scanner);
+  }
+
+  private synchronized void release(int key) {
+    CachedScanner cached = scanners.get(key);
+    if (cached == null) {
+      return;
+    }
+    if (--cached.references <= 0) {
+      scanners.remove(key);
+      cached.scanner.close();
+    }
+  }
+
+  synchronized void shutdown() {
+    for (CachedScanner cached : scanners.values()) {
+      cached.scanner.close();
+    }
+    scanners.clear();
+    executor.shutdown();
+  }
+
+  private static class CachedScanner {
+    final BarcodeScanner scanner;
+    int references;
+
+    private CachedScanner(BarcodeScanner scanner) {
+      this.scanner = scanner;
+    }
+  }
+
+  class Lease {
+    private final int key;
+    final BarcodeScanner scanner;
+    private boolean released;
+
+    private Lease(int key, BarcodeScanner scanner) {
+      this.key = key;
+      this.scanner = scanner;
+    }
+
+    ExecutorService executor() {
+      return executor;
+    }
+
+    void release() {
+      if (!released) {
+        released = true;
+        DecodePool.this.release(key);
+      }
+    }
+  }
+}
@@ -0,0 +1,246 @@
+package com.github.rmtmckenzie.qr_mobile_vision;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.media.Image;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Saves a JPEG of the labels each successful read came from, as evidence of what was scanned.
+ * <p>
+ * The image saved is the area around the read barcodes' bounding boxes. Only a row by row copy
+ * of that area's planes happens on the calling thread, while the camera image is still open;
+ * sampling it every {@code subsample} pixels, turning it upright, encoding and writing run on a
+ * single background thread with a bounded queue. When the queue is full the frame isn't
+ * captured rather than holding up scanning. Files are written under a temporary name and
+ * renamed once complete, so a file at a returned path is never partial.
+ */
+class EvidenceCapture {
+  private static final String TAG = "cgr.qrmv.EvidenceCapture";
+  /**
+   * Smallest margin kept around the barcodes, in pixels, besides a quarter of their size.
+   */
+  private static final int MIN_MARGIN = 16;
+  /**
+   * Numbers files across every session in the process, so sessions saving to the same directory
+   * in the same millisecond don't overwrite each other's files.
+   */
+  private static final AtomicInteger sequence = new AtomicInteger();
+
+  private final File directory;
+  private final int subsample;
+  private final int quality;
+  private final ThreadPoolExecutor executor;
+
+  private EvidenceCapture(File directory, int subsample, int quality, int queueSize) {
+    this.directory = directory;
+    this.subsample = subsample;
+    this.quality = quality;
+    this.executor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize),
+      runnable -> new Thread(runnable, "qrmv-evidence"));
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * @param spec the "evidence" argument of start, or null not to capture evidence.
+   * @throws IllegalArgumentException if the spec has no directory.
+   */
+  static EvidenceCapture fromMap(Map<?, ?> spec) {
+    if (spec == null) {
+      return null;
+    }
+    Object directory = spec.get("directory");
+    if (directory == null || directory.toString().isEmpty()) {
+      throw new IllegalArgumentException("Evidence capture needs a directory");
+    }
+    Object subsample = spec.get("subsample");
+    Object quality = spec.get("quality");
+    Object queueSize = spec.get("queueSize");
+    return new EvidenceCapture(new File(directory.toString()),
+      subsample instanceof Number ? Math.max(1, ((Number) subsample).intValue()) : 2,
+      quality instanceof Number ? Math.max(0, Math.min(100, ((Number) quality).intValue())) : 80,
+      queueSize instanceof Number ? Math.max(1, ((Number) queueSize).intValue()) : 4);
+  }
+
+  /**
+   * Copies the area around {@code bounds} out of {@code image} and queues it to be saved.
+   *
+   * @param region   the part of the image that was decoded, or null if all of it was.
+   * @param bounds   the read barcodes' bounding boxes in the decoded image's upright
+   *                 coordinates, or null to save the whole decoded region.
+   * @param rotation clockwise rotation that turns the image upright.
+   * @return the path the JPEG will be written to, or null if it won't be captured.
+   */
+  String capture(Image image, Rect region, Rect bounds, int rotation) {
+    if (executor.getQueue().remainingCapacity() == 0) {
+      return null;
+    }
+
+    Rect crop = sensorCrop(image.getWidth(), image.getHeight(), region, bounds, rotation);
+    final int width = crop.width();
+    final int height = crop.height();
+    if (width / subsample < 2 || height / subsample < 2) {
+      return null;
+    }
+    Image.Plane[] planes = image.getPlanes();
+    final PlaneCopy y = PlaneCopy.of(planes[0], crop.left, crop.top, width, height);
+    final PlaneCopy u = PlaneCopy.of(planes[1], crop.left / 2, crop.top / 2, width / 2, height / 2);
+    final PlaneCopy v = PlaneCopy.of(planes[2], crop.left / 2, crop.top / 2, width / 2, height / 2);
+
+    final File file = new File(directory, "qrmv_" + System.currentTimeMillis() + "_" + sequence.incrementAndGet() + ".jpg");
+    try {
+      executor.execute(() -> write(y, u, v, width, height, rotation, file));
+    } catch (RejectedExecutionException e) {
+      return null;
+    }
+    return file.getAbsolutePath();
+  }
+
+  /**
+   * Maps {@code bounds} from the upright decoded image back onto the camera image and adds a
+   * margin, aligned to even coordinates for the subsampled chroma planes.
+   */
+  private static Rect sensorCrop(int imageWidth, int imageHeight, Rect region, Rect bounds, int rotation) {
+    Rect decoded = region != null ? region : new Rect(0, 0, imageWidth, imageHeight);
+    if (bounds == null) {
+      return decoded;
+    }
+    int width = decoded.width();
+    int height = decoded.height();
+    int x1 = gridX(rotation, bounds.left, bounds.top, width);
+    int y1 = gridY(rotation, bounds.left, bounds.top, height);
+    int x2 = gridX(rotation, bounds.right - 1, bounds.bottom - 1, width);
+    int y2 = gridY(rotation, bounds.right - 1, bounds.bottom - 1, height);
+    int margin = Math.max(MIN_MARGIN, Math.max(bounds.width(), bounds.height()) / 4);
+    Rect crop = new Rect(
+      Math.max(0, decoded.left + Math.min(x1, x2) - margin) & ~1,
+      Math.max(0, decoded.top + Math.min(y1, y2) - margin) & ~1,
+      Math.min(imageWidth, decoded.left + Math.max(x1, x2) + 1 + margin) & ~1,
+      Math.min(imageHeight, decoded.top + Math.max(y1, y2) + 1 + margin) & ~1);
+    return crop.width() > 0 && crop.height() > 0 ? crop : decoded;
+  }
+
+  /**
+   * Writes are still finished after closing, but no more are accepted.
+   */
+  void close() {
+    executor.shutdown();
+  }
+
+  private void write(PlaneCopy y, PlaneCopy u, PlaneCopy v, int cropWidth, int cropHeight, int rotation, File file) {
+    int gridWidth = (cropWidth / subsample) & ~1;
+    int gridHeight = (cropHeight / subsample) & ~1;
+    boolean swap = rotation == 90 || rotation == 270;
+    int width = swap ? gridHeight : gridWidth;
+    int height = swap ? gridWidth : gridHeight;
+    byte[] nv21 = new byte[width * height * 3 / 2];
+
+    int out = 0;
+    for (int row = 0; row < height; ++row) {
+      for (int col = 0; col < width; ++col) {
+        nv21[out++] = y.get(gridX(rotation, col, row, gridWidth) * subsample, gridY(rotation, col, row, gridHeight) * subsample);
+      }
+    }
+    for (int row = 0; row < height; row += 2) {
+      for (int col = 0; col < width; col += 2) {
+        int chromaX = gridX(rotation, col, row, gridWidth) * subsample / 2;
+        int chromaY = gridY(rotation, col, row, gridHeight) * subsample / 2;
+        nv21[out++] = v.get(chromaX, chromaY);
+        nv21[out++] = u.get(chromaX, chromaY);
+      }
+    }
+
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      Log.w(TAG, "Could not create " + directory);
+      return;
+    }
+    File partial = new File(file.getPath() + ".part");
+    try (OutputStream stream = new FileOutputStream(partial)) {
+      new YuvImage(nv21, ImageFormat.NV21, width, height, null)
+        .compressToJpeg(new Rect(0, 0, width, height), quality, stream);
+    } catch (IOException e) {
+      Log.w(TAG, "Could not write " + file, e);
+      partial.delete();
+      return;
+    }
+    if (!partial.renameTo(file)) {
+      Log.w(TAG, "Could not rename " + partial);
+      partial.delete();
+    }
+  }
+
+  /**
+   * Column of an unrotated image, {@code width} wide, that pixel (x, y) of the same image turned
+   * upright comes from.
+   */
+  private static int gridX(int rotation, int x, int y, int width) {
+    switch (rotation) {
+      case 90:
+        return y;
+      case 180:
+        return width - 1 - x;
+      case 270:
+        return width - 1 - y;
+      default:
+        return x;
+    }
+  }
+
+  private static int gridY(int rotation, int x, int y, int height) {
+    switch (rotation) {
+      case 90:
+        return height - 1 - x;
+      case 180:
+        return height - 1 - y;
+      case 270:
+        return x;
+      default:
+        return y;
+    }
+  }
+
+  /**
+   * Rows of one plane copied out of a camera image, keeping the plane's pixel stride.
+   */
+  private static class PlaneCopy {
+    final byte[] data;
+    final int rowLength;
+    final int pixelStride;
+
+    private PlaneCopy(byte[] data, int rowLength, int pixelStride) {
+      this.data = data;
+      this.rowLength = rowLength;
+      this.pixelStride = pixelStride;
+    }
+
+    static PlaneCopy of(Image.Plane plane, int left, int top, int width, int height) {
+      ByteBuffer buffer = plane.getBuffer().duplicate();
+      int rowStride = plane.getRowStride();
+      int pixelStride = plane.getPixelStride();
+      int rowLength = (width - 1) * pixelStride + 1;
+      byte[] data = new byte[rowLength * height];
+      for (int row = 0; row < height; ++row) {
+        buffer.position((top + row) * rowStride + left * pixelStride);
+        buffer.get(data, row * rowLength, rowLength);
+      }
+      return new PlaneCopy(data, rowLength, pixelStride);
+    }
+
+    byte get(int x, int y) {
+      return data[y * rowLength + x * pixelStride];
+    }
+  }
+}
@@ -0,0 +1,255 @@
+package com.github.rmtmckenzie.qr_mobile_vision;
+
+import com.google.mlkit.vision.barcode.common.Barcode;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Splits GS1 element strings into their application identifiers (AIs).
+ * <p>
+ * Accepts the FNC1 form produced by GS1-128, GS1 DataMatrix and GS1 QR codes - with or without
+ * a leading symbology identifier such as "]d2" or FNC1, and with variable length fields ended
+ * by a group separator (ASCII 29) - as well as the human readable "(01)...(17)..." form. The
+ * length of each AI and of its data, where fixed, comes from the GS1 general specifications'
+ * table of AI prefixes.
+ */
+class Gs1Parser {
+  static final char GROUP_SEPARATOR = '\u001d';
+
+  private static final String[] SYMBOLOGY_IDENTIFIERS = {"]C1", "]e0", "]d2", "]Q3", "]J1"};
+  /**
+   * Formats that can carry GS1 element strings, and whose raw values from ML Kit usually have
+   * the leading FNC1 stripped.
+   */
+  private static final int GS1_FORMATS = Barcode.FORMAT_CODE_128 | Barcode.FORMAT_DATA_MATRIX | Barcode.FORMAT_QR_CODE;
+  private static final Pattern BRACKETED_AI = Pattern.compile("\\((\\d{2,4})\\)");
+
+  private Gs1Parser() {
+  }
+
+  /**
+   * Whether {@code value} looks like a GS1 element string rather than ordinary text that
+   * happens to start with digits.
+   */
+  static boolean isGs1(String value) {
+    if (value == null || value.isEmpty()) {
+      return false;
+    }
+    if (value.charAt(0) == GROUP_SEPARATOR) {
+      return true;
+    }
+    if (value.charAt(0) == '(') {
+      // only a known AI in brackets, so that any text in brackets isn't taken for GS1
+      Matcher ai = BRACKETED_AI.matcher(value);
+      return ai.lookingAt() && isKnownAi(ai.group(1));
+    }
+    for (String identifier : SYMBOLOGY_IDENTIFIERS) {
+      if (value.startsWith(identifier)) {
+        return true;
+      }
+    }
+    return value.indexOf(GROUP_SEPARATOR) > 0;
+  }
+
+  /**
+   * Like {@link #isGs1(String)}, but also recognises values of GS1-capable formats that carry
+   * no marker at all, as ML Kit usually returns them - e.g. an SSCC "00" + 18 digits. Those
+   * have to parse completely as known AIs, start with an SSCC or GTIN (00, 01 or 02) whose
+   * check digit is valid and have all digit fixed-length fields, so that plain numbers aren't
+   * taken for GS1.
+   */
+  static boolean isGs1(int format, String value) {
+    if (isGs1(value)) {
+      return true;
+    }
+    if ((format & GS1_FORMATS) == 0 || value == null || value.length() < 2) {
+      return false;
+    }
+    Map<String, String> elements = parse(value);
+    if (elements == null) {
+      return false;
+    }
+    Map.Entry<String, String> first = elements.entrySet().iterator().next();
+    if (!first.getKey().equals("00") && !first.getKey().equals("01") && !first.getKey().equals("02")) {
+      return false;
+    }
+    for (Map.Entry<String, String> element : elements.entrySet()) {
+      if (fixedDataLength(element.getKey()) > 0 && !isDigits(element.getValue())) {
+        return false;
+      }
+    }
+    return hasValidCheckDigit(first.getValue());
+  }
+
+  /**
+   * @return the AIs and their values in the order they appear, or null if {@code value} isn't
+   * a well formed GS1 element string.
+   */
+  static Map<String, String> parse(String value) {
+    if (value == null) {
+      return null;
+    }
+    for (String identifier : SYMBOLOGY_IDENTIFIERS) {
+      if (value.startsWith(identifier)) {
+        value = value.substring(identifier.length());
+        break;
+      }
+    }
+    if (value.startsWith("(")) {
+      return parseBracketed(value);
+    }
+
+    Map<String, String> elements = new LinkedHashMap<>();
+    int i = 0;
+    while (i < value.length()) {
+      if (value.charAt(i) == GROUP_SEPARATOR) {
+        i++;
+        continue;
+      }
+      int aiLength = aiLength(value, i);
+      if (aiLength <= 0 || i + aiLength > value.length()) {
+        return null;
+      }
+      String ai = value.substring(i, i + aiLength);
+      if (!isDigits(ai)) {
+        return null;
+      }
+      i += aiLength;
+
+      int dataLength = fixedDataLength(ai);
+      int end;
+      if (dataLength > 0) {
+        end = i + dataLength;
+        if (end > value.length()) {
+          return null;
+        }
+      } else {
+        end = value.indexOf(GROUP_SEPARATOR, i);
+        if (end < 0) {
+          end = value.length();
+        }
+      }
+      elements.put(ai, value.substring(i, end));
+      i = end;
+    }
+    return elements.isEmpty() ? null : elements;
+  }
+
+  private static Map<String, String> parseBracketed(String value) {
+    Map<String, String> elements = new LinkedHashMap<>();
+    int i = 0;
+    while (i < value.length()) {
+      if (value.charAt(i) != '(') {
+        return null;
+      }
+      int close = value.indexOf(')', i);
+      if (close < 0) {
+        return null;
+      }
+      String ai = value.substring(i + 1, close);
+      if (!isKnownAi(ai)) {
+        return null;
+      }
+      int next = value.indexOf('(', close);
+      if (next < 0) {
+        next = value.length();
+      }
+      elements.put(ai, value.substring(close + 1, next));
+      i = next;
+    }
+    return elements.isEmpty() ? null : elements;
+  }
+
+  private static boolean isKnownAi(String ai) {
+    return isDigits(ai) && aiLength(ai, 0) == ai.length();
+  }
+
+  /**
+   * The number of digits in the AI starting at {@code start}, which is determined by its first
+   * two digits.
+   */
+  private static int aiLength(String value, int start) {
+    if (start + 2 > value.length() || !isDigits(value.substring(start, start + 2))) {
+      return -1;
+    }
+    int prefix = Integer.parseInt(value.substring(start, start + 2));
+    if (prefix <= 22 || prefix == 30 || prefix == 37 || prefix >= 90) {
+      return 2;
+    }
+    if ((prefix >= 23 && prefix <= 25) || (prefix >= 40 && prefix <= 42) || prefix == 71) {
+      return 3;
+    }
+    if ((prefix >= 31 && prefix <= 36) || prefix == 39 || prefix == 43 || prefix == 70 || prefix == 72
+      || (prefix >= 80 && prefix <= 82)) {
+      return 4;
+    }
+    return -1;
+  }
+
+  /**
+   * The length of the data of AIs whose data has a predefined length, otherwise 0 for data that
+   * runs up to the next group separator.
+   */
+  private static int fixedDataLength(String ai) {
+    int prefix = Integer.parseInt(ai.substring(0, 2));
+    switch (prefix) {
+      case 0:
+        return 18;
+      case 1:
+      case 2:
+      case 3:
+        return 14;
+      case 4:
+        return 16;
+      case 11:
+      case 12:
+      case 13:
+      case 14:
+      case 15:
+      case 16:
+      case 17:
+      case 18:
+      case 19:
+        return 6;
+      case 20:
+        return 2;
+      case 31:
+      case 32:
+      case 33:
+      case 34:
+      case 35:
+      case 36:
+        return 6;
+      case 41:
+        return 13;
+      default:
+        return 0;
+    }
+  }
+
+  /**
+   * GS1 mod 10 check digit: weights of 3 and 1 alternate from the digit before the check digit.
+   */
+  private static boolean hasValidCheckDigit(String digits) {
+    int sum = 0;
+    int weight = 3;
+    for (int i = digits.length() - 2; i >= 0; --i) {
+      sum += (digits.charAt(i) - '0') * weight;
+      weight = 4 - weight;
+    }
+    return (10 - sum % 10) % 10 == digits.charAt(digits.length() - 1) - '0';
+  }
+
+  private static boolean isDigits(String value) {
+    for (int i = 0; i < value.length(); ++i) {
+      char c = value.charAt(i);
+      if (c < '0' || c > '9') {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -2,27 +2,124 @@ package com.github.rmtmckenzie.qr_mobile_vision;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 
+/**
+ * Stops a session once it hasn't been heard from for {@code timeout} milliseconds.
+ * <p>
+ * Beats only record the time, so they cost nothing however often they come. The time since
+ * the last beat is checked whenever a camera frame arrives; a single fallback check, scheduled
+ * for when the timeout would run out, covers the camera not delivering frames. The fallback
+ * only reschedules itself when it runs and finds the session was heard from meanwhile.
+ * Everything but {@link #beat()} is used from the main thread.
+ */
 public class Heartbeat {
 
+    /**
+     * What keeps a session alive.
+     */
+    enum Source {
+        /**
+         * Dart calling heartbeat regularly.
+         */
+        HEARTBEAT,
+        /**
+         * The preview texture: the session is stopped if its surface is cleaned up and not
+         * recreated within the timeout, and when the engine detaches. Needs no beats.
+         */
+        ENGINE;
+
+        static Source fromString(String name) {
+            if (name != null) {
+                for (Source source : values()) {
+                    if (source.name().equalsIgnoreCase(name)) {
+                        return source;
+                    }
+                }
+            }
+            return HEARTBEAT;
+        }
+    }
+
     private final Handler handler = new Handler(Looper.getMainLooper());
-    private final Runnable runner;
+    private final Runnable onExpired;
     private final int timeout;
+    private final Runnable fallback = this::fallbackCheck;
+    private volatile long lastBeat = SystemClock.elapsedRealtime();
+    private boolean armed;
+    private boolean fallbackScheduled;
 
-    public Heartbeat(int timeout, Runnable runner) {
+    /**
+     * @param armed whether to start watching straight away, or only once {@link #arm()} is
+     *              called.
+     */
+    public Heartbeat(int timeout, Runnable onExpired, boolean armed) {
         this.timeout = timeout;
-        this.runner = runner;
-
-        handler.postDelayed(runner, timeout);
+        this.onExpired = onExpired;
+        if (armed) {
+            arm();
+        }
     }
 
+    /**
+     * Safe to call from any thread.
+     */
     public void beat() {
-        handler.removeCallbacks(runner);
-        handler.postDelayed(runner, timeout);
+        lastBeat = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Starts watching, with the timeout counting from now.
+     */
+    void arm() {
+        beat();
+        armed = true;
+        scheduleFallback(timeout);
+    }
+
+    void disarm() {
+        armed = false;
+        fallbackScheduled = false;
+        handler.removeCallbacks(fallback);
+    }
+
+    /**
+     * Called as frames arrive, instead of keeping a timer running.
+     */
+    void check() {
+        if (armed && SystemClock.elapsedRealtime() - lastBeat >= timeout) {
+            expire();
+        }
     }
 
     public void stop() {
-        handler.removeCallbacks(runner);
+        disarm();
+        handler.removeCallbacks(onExpired);
+    }
+
+    private void fallbackCheck() {
+        fallbackScheduled = false;
+        if (!armed) {
+            return;
+        }
+        long idle = SystemClock.elapsedRealtime() - lastBeat;
+        if (idle >= timeout) {
+            expire();
+        } else {
+            scheduleFallback(timeout - idle);
+        }
     }
 
+    private void scheduleFallback(long delay) {
+        if (!fallbackScheduled) {
+            fallbackScheduled = true;
+            handler.postDelayed(fallback, delay);
+        }
+    }
+
+    private void expire() {
+        disarm();
+        // posted rather than run, as a check can come from inside a camera callback
+        handler.post(onExpired);
+    }
 }
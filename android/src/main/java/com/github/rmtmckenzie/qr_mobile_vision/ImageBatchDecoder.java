@@ -0,0 +1,238 @@
+package com.github.rmtmckenzie.qr_mobile_vision;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskExecutors;
+import com.google.mlkit.vision.barcode.common.Barcode;
+import com.google.mlkit.vision.common.InputImage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes a batch of still images, given as file paths or encoded bytes, with a bounded number
+ * of images in flight at once.
+ * <p>
+ * Each of the {@code parallelism} lanes loads an image on the supplied executor, hands it to the
+ * scanner and only picks up the next image once the scanner has finished, so a batch of hundreds
+ * of photos never holds more than {@code parallelism} bitmaps in memory.
+ */
+class ImageBatchDecoder {
+  private static final String TAG = "cgr.qrmv.ImageBatch";
+  /**
+   * Photos are downsampled so that their longest side is no longer than this, which is plenty
+   * for reading barcodes and keeps each decoded bitmap to a few megabytes.
+   */
+  private static final int MAX_DIMENSION = 2560;
+
+  interface Listener {
+    void imageDecoded(int batchId, Map<String, Object> imageResult);
+
+    void batchFinished(int batchId, Map<String, Object> summary);
+  }
+
+  private final int batchId;
+  private final List<String> paths;
+  private final List<byte[]> images;
+  private final DecodePool.Lease scannerLease;
+  private final Executor executor;
+  private final Listener listener;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+  private final AtomicInteger nextIndex = new AtomicInteger();
+  private final AtomicInteger finishedLanes = new AtomicInteger();
+  private final AtomicInteger decoded = new AtomicInteger();
+  private final AtomicInteger failed = new AtomicInteger();
+  private final int count;
+  private int lanes;
+  private volatile boolean cancelled;
+  private volatile boolean detached;
+
+  ImageBatchDecoder(int batchId, List<String> paths, List<byte[]> images, DecodePool.Lease scannerLease,
+                    Executor executor, Listener listener) {
+    this.batchId = batchId;
+    this.paths = paths == null ? new ArrayList<String>() : paths;
+    this.images = images == null ? new ArrayList<byte[]>() : images;
+    this.scannerLease = scannerLease;
+    this.executor = executor;
+    this.listener = listener;
+    this.count = this.paths.size() + this.images.size();
+  }
+
+  void start(int parallelism) {
+    lanes = Math.max(1, Math.min(parallelism, count));
+    if (count == 0) {
+      finish();
+      return;
+    }
+    for (int i = 0; i < lanes; ++i) {
+      submitNext();
+    }
+  }
+
+  /**
+   * Stops picking up new images. Images not reported yet are dropped, as nobody is listening
+   * for them any more, but the batch still finishes with a summary.
+   */
+  void cancel() {
+    cancelled = true;
+  }
+
+  /**
+   * Cancels the batch for good when the engine goes away: nothing more is reported, including
+   * anything already queued for the main thread. Must be called before the executor is shut
+   * down.
+   */
+  void detach() {
+    detached = true;
+    cancelled = true;
+    mainHandler.removeCallbacksAndMessages(null);
+  }
+
+  /**
+   * Loads this lane's next image on the executor, or ends the lane if the batch was cancelled
+   * or the executor has been shut down.
+   */
+  private void submitNext() {
+    if (cancelled) {
+      laneFinished();
+      return;
+    }
+    try {
+      executor.execute(this::decodeNext);
+    } catch (RejectedExecutionException e) {
+      laneFinished();
+    }
+  }
+
+  private void laneFinished() {
+    if (finishedLanes.incrementAndGet() == lanes) {
+      finish();
+    }
+  }
+
+  private void decodeNext() {
+    final int index = cancelled ? count : nextIndex.getAndIncrement();
+    if (index >= count) {
+      laneFinished();
+      return;
+    }
+
+    final Bitmap bitmap;
+    try {
+      bitmap = loadBitmap(index);
+    } catch (Throwable t) {
+      reportFailure(index, t.getMessage() == null ? t.toString() : t.getMessage());
+      submitNext();
+      return;
+    }
+
+    // barcodes are found regardless of orientation, so exif rotation is not applied
+    scannerLease.scanner.process(InputImage.fromBitmap(bitmap, 0))
+      .addOnCompleteListener(TaskExecutors.MAIN_THREAD, (Task<List<Barcode>> task) -> {
+        // the scanner is done with the pixels, free them now rather than on a later gc
+        bitmap.recycle();
+        if (task.isSuccessful()) {
+          reportSuccess(index, task.getResult());
+        } else {
+          Exception e = task.getException();
+          reportFailure(index, e == null ? "unknown" : e.getMessage());
+        }
+        submitNext();
+      });
+  }
+
+  @NonNull
+  private Bitmap loadBitmap(int index) {
+    BitmapFactory.Options bounds = new BitmapFactory.Options();
+    bounds.inJustDecodeBounds = true;
+    decode(index, bounds);
+    if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+      throw new IllegalArgumentException("Unable to decode image " + index);
+    }
+
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    int longest = Math.max(bounds.outWidth, bounds.outHeight);
+    options.inSampleSize = 1;
+    while (longest / options.inSampleSize > MAX_DIMENSION) {
+      options.inSampleSize *= 2;
+    }
+
+    Bitmap bitmap = decode(index, options);
+    if (bitmap == null) {
+      throw new IllegalArgumentException("Unable to decode image " + index);
+    }
+    return bitmap;
+  }
+
+  private Bitmap decode(int index, BitmapFactory.Options options) {
+    if (index < paths.size()) {
+      return BitmapFactory.decodeFile(paths.get(index), options);
+    }
+    byte[] bytes = images.get(index - paths.size());
+    return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+  }
+
+  private void reportSuccess(int index, List<Barcode> barcodes) {
+    decoded.incrementAndGet();
+    List<String> values = new ArrayList<>(barcodes.size());
+    List<String> formats = new ArrayList<>(barcodes.size());
+    for (Barcode barcode : barcodes) {
+      values.add(barcode.getRawValue());
+      formats.add(BarcodeFormats.nameOf(barcode.getFormat()));
+    }
+
+    final Map<String, Object> imageResult = new HashMap<>();
+    imageResult.put("batchId", batchId);
+    imageResult.put("index", index);
+    imageResult.put("values", values);
+    imageResult.put("formats", formats);
+    postImageResult(imageResult);
+  }
+
+  private void reportFailure(int index, String error) {
+    failed.incrementAndGet();
+    Log.w(TAG, "Failed to decode image " + index + " of batch " + batchId + ": " + error);
+
+    final Map<String, Object> imageResult = new HashMap<>();
+    imageResult.put("batchId", batchId);
+    imageResult.put("index", index);
+    imageResult.put("error", error);
+    postImageResult(imageResult);
+  }
+
+  private void postImageResult(final Map<String, Object> imageResult) {
+    mainHandler.post(() -> {
+      if (!cancelled) {
+        listener.imageDecoded(batchId, imageResult);
+      }
+    });
+  }
+
+  private void finish() {
+    final Map<String, Object> summary = new HashMap<>();
+    summary.put("batchId", batchId);
+    summary.put("count", count);
+    summary.put("decoded", decoded.get());
+    summary.put("failed", failed.get());
+    summary.put("cancelled", cancelled);
+    mainHandler.post(() -> {
+      scannerLease.release();
+      if (!detached) {
+        listener.batchFinished(batchId, summary);
+      }
+    });
+  }
+}
@@ -0,0 +1,200 @@
+package com.github.rmtmckenzie.qr_mobile_vision;
+
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.util.Log;
+import android.util.Size;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks which camera to open for a lens direction.
+ * <p>
+ * Phones with several back cameras list the main wide lens first, which often can't focus
+ * closer than 10cm or so. Rather than taking the first camera facing the right way, the
+ * candidates are ranked on what they can actually do - closest focus distance, focal length,
+ * autofocus and whether they can deliver YUV frames at the requested size.
+ */
+class LensSelector {
+  private static final String TAG = "cgr.qrmv.LensSelector";
+
+  enum Preference {
+    /**
+     * The first camera facing the requested direction, as before lens selection existed.
+     */
+    DEFAULT,
+    /**
+     * The lens that can focus closest, for small labels held near the camera.
+     */
+    CLOSE_RANGE,
+    /**
+     * The longest lens that can autofocus, for codes further away.
+     */
+    FAR_RANGE;
+
+    static Preference fromString(String name) {
+      if (name != null) {
+        for (Preference preference : values()) {
+          if (preference.name().equals(name)) {
+            return preference;
+          }
+        }
+      }
+      return DEFAULT;
+    }
+  }
+
+  /**
+   * Rankings only depend on the hardware, so they are kept for the life of the process.
+   */
+  private static final Map<String, List<String>> rankingCache = new HashMap<>();
+
+  private LensSelector() {
+  }
+
+  /**
+   * Returns the ids of the cameras facing {@code lensFacing}, best first.
+   */
+  static synchronized List<String> rank(CameraManager manager, int lensFacing, Preference preference,
+                                        int targetWidth, int targetHeight) throws CameraAccessException {
+    String[] cameraIds = manager.getCameraIdList();
+    String key = lensFacing + ":" + preference + ":" + targetWidth + "x" + targetHeight + ":" + Arrays.toString(cameraIds);
+    List<String> cached = rankingCache.get(key);
+    if (cached != null) {
+      return cached;
+    }
+
+    List<Candidate> candidates = new ArrayList<>();
+    for (int i = 0; i < cameraIds.length; ++i) {
+      CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraIds[i]);
+      Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+      if (facing == null || facing != lensFacing) {
+        continue;
+      }
+      Candidate candidate = new Candidate(cameraIds[i], i, characteristics, targetWidth, targetHeight);
+      if (preference == Preference.DEFAULT || candidate.backwardCompatible) {
+        candidates.add(candidate);
+      }
+    }
+
+    if (preference != Preference.DEFAULT) {
+      Collections.sort(candidates, comparator(preference));
+    }
+
+    List<String> ranking = new ArrayList<>(candidates.size());
+    for (Candidate candidate : candidates) {
+      ranking.add(candidate.id);
+      Log.i(TAG, "Ranked camera " + candidate);
+    }
+    rankingCache.put(key, ranking);
+    return ranking;
+  }
+
+  private static Comparator<Candidate> comparator(final Preference preference) {
+    return (a, b) -> {
+      if (a.supportsTargetSize != b.supportsTargetSize) {
+        return a.supportsTargetSize ? -1 : 1;
+      }
+      if (a.autoFocus != b.autoFocus) {
+        return a.autoFocus ? -1 : 1;
+      }
+      int compare;
+      if (preference == Preference.CLOSE_RANGE) {
+        // minimum focus distance is in diopters, so larger means closer
+        compare = Float.compare(b.minimumFocusDistance, a.minimumFocusDistance);
+        if (compare == 0) {
+          compare = Float.compare(b.focalLength, a.focalLength);
+        }
+      } else {
+        compare = Float.compare(b.focalLength, a.focalLength);
+        if (compare == 0) {
+          compare = Float.compare(b.minimumFocusDistance, a.minimumFocusDistance);
+        }
+      }
+      return compare != 0 ? compare : Integer.compare(a.index, b.index);
+    };
+  }
+
+  private static class Candidate {
+    final String id;
+    final int index;
+    final boolean backwardCompatible;
+    final boolean autoFocus;
+    final boolean supportsTargetSize;
+    final float minimumFocusDistance;
+    final float focalLength;
+
+    Candidate(String id, int index, CameraCharacteristics characteristics, int targetWidth, int targetHeight) {
+      this.id = id;
+      this.index = index;
+
+      boolean backwardCompatible = false;
+      int[] capabilities = characteristics.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+      if (capabilities != null) {
+        for (int capability : capabilities) {
+          if (capability == CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_BACKWARD_COMPATIBLE) {
+            backwardCompatible = true;
+            break;
+          }
+        }
+      }
+      this.backwardCompatible = backwardCompatible;
+
+      boolean autoFocus = false;
+      int[] afModes = characteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+      if (afModes != null) {
+        for (int afMode : afModes) {
+          if (afMode != CameraMetadata.CONTROL_AF_MODE_OFF) {
+            autoFocus = true;
+            break;
+          }
+        }
+      }
+      this.autoFocus = autoFocus;
+
+      Float minimumFocusDistance = characteristics.get(CameraCharacteristics.LENS_INFO_MINIMUM_FOCUS_DISTANCE);
+      this.minimumFocusDistance = minimumFocusDistance == null ? 0 : minimumFocusDistance;
+
+      float focalLength = 0;
+      float[] focalLengths = characteristics.get(CameraCharacteristics.LENS_INFO_AVAILABLE_FOCAL_LENGTHS);
+      if (focalLengths != null) {
+        for (float length : focalLengths) {
+          focalLength = Math.max(focalLength, length);
+        }
+      }
+      this.focalLength = focalLength;
+
+      boolean supportsTargetSize = false;
+      StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+      Size[] sizes = map == null ? null : map.getOutputSizes(ImageFormat.YUV_420_888);
+      if (sizes != null) {
+        int longTarget = Math.max(targetWidth, targetHeight);
+        int shortTarget = Math.min(targetWidth, targetHeight);
+        for (Size size : sizes) {
+          if (Math.max(size.getWidth(), size.getHeight()) >= longTarget
+            && Math.min(size.getWidth(), size.getHeight()) >= shortTarget) {
+            supportsTargetSize = true;
+            break;
+          }
+        }
+      }
+      this.supportsTargetSize = supportsTargetSize;
+    }
+
+    @Override
+    public String toString() {
+      return id + " (af: " + autoFocus + ", min focus: " + minimumFocusDistance + "D, focal length: "
+        + focalLength + "mm, target size: " + supportsTargetSize + ")";
+    }
+  }
+}
@@ -0,0 +1,162 @@
+package com.github.rmtmckenzie.qr_mobile_vision;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Steps the scanner's memory use down while the system is short of memory, and back up once
+ * it has recovered.
+ * <p>
+ * {@link #onTrimMemory} only ever reports pressure rising, so recovery is detected by polling:
+ * once no trim callback has arrived for {@link #RESTORE_DELAY_MS} and the activity manager no
+ * longer reports low memory, the level is stepped back up one at a time.
+ */
+class MemoryGovernor implements ComponentCallbacks2 {
+  private static final String TAG = "cgr.qrmv.MemoryGovernor";
+  private static final long RESTORE_DELAY_MS = 30000;
+
+  enum Level {
+    NORMAL(5, 1f, 1f),
+    /**
+     * Fewer camera buffers and a smaller analysis stream; buffered reads and trace events cut
+     * in half.
+     */
+    MODERATE(3, 0.75f, 0.5f),
+    /**
+     * The fewest buffers that still let a new frame be acquired while one is being decoded,
+     * half resolution analysis and no trace log.
+     */
+    CRITICAL(2, 0.5f, 0f);
+
+    /**
+     * maxImages of the analysis ImageReader.
+     */
+    final int maxImages;
+    /**
+     * Scale applied to the requested size when picking the analysis stream size.
+     */
+    final float analysisScale;
+    /**
+     * Scale applied to the capacity of the result buffer and trace log.
+     */
+    final float bufferScale;
+
+    Level(int maxImages, float analysisScale, float bufferScale) {
+      this.maxImages = maxImages;
+      this.analysisScale = analysisScale;
+      this.bufferScale = bufferScale;
+    }
+  }
+
+  interface Listener {
+    void memoryLevelChanged(Level level);
+  }
+
+  private final Context context;
+  private final Listener listener;
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  private Level level = Level.NORMAL;
+  private long lastPressure;
+
+  MemoryGovernor(Context context, Listener listener) {
+    this.context = context;
+    this.listener = listener;
+  }
+
+  Level level() {
+    return level;
+  }
+
+  void start() {
+    context.registerComponentCallbacks(this);
+  }
+
+  void stop() {
+    context.unregisterComponentCallbacks(this);
+    handler.removeCallbacks(restore);
+  }
+
+  /** @noinspection RedundantSuppression*/
+  @SuppressWarnings("deprecation")
+  @Override
+  public void onTrimMemory(int trimLevel) {
+    Level pressure;
+    if (trimLevel >= TRIM_MEMORY_COMPLETE || trimLevel == TRIM_MEMORY_RUNNING_CRITICAL) {
+      pressure = Level.CRITICAL;
+    } else if (trimLevel == TRIM_MEMORY_UI_HIDDEN) {
+      // the app going to the background says nothing about available memory
+      return;
+    } else {
+      pressure = Level.MODERATE;
+    }
+    Log.i(TAG, "Trim memory level " + trimLevel);
+    underPressure(pressure);
+  }
+
+  @Override
+  public void onLowMemory() {
+    underPressure(Level.CRITICAL);
+  }
+
+  @Override
+  public void onConfigurationChanged(@NonNull Configuration newConfig) {
+  }
+
+  private void underPressure(Level pressure) {
+    lastPressure = SystemClock.elapsedRealtime();
+    if (pressure.compareTo(level) > 0) {
+      setLevel(pressure);
+    }
+    handler.removeCallbacks(restore);
+    handler.postDelayed(restore, RESTORE_DELAY_MS);
+  }
+
+  private final Runnable restore = new Runnable() {
+    @Override
+    public void run() {
+      if (level == Level.NORMAL) {
+        return;
+      }
+      long quiet = SystemClock.elapsedRealtime() - lastPressure;
+      if (quiet < RESTORE_DELAY_MS) {
+        handler.postDelayed(this, RESTORE_DELAY_MS - quiet);
+        return;
+      }
+      if (isLowOnMemory()) {
+        lastPressure = SystemClock.elapsedRealtime();
+        handler.postDelayed(this, RESTORE_DELAY_MS);
+        return;
+      }
+
+      setLevel(Level.values()[level.ordinal() - 1]);
+      if (level != Level.NORMAL) {
+        lastPressure = SystemClock.elapsedRealtime();
+        handler.postDelayed(this, RESTORE_DELAY_MS);
+      }
+    }
+  };
+
+  private boolean isLowOnMemory() {
+    ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+    if (activityManager == null) {
+      return false;
+    }
+    ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+    activityManager.getMemoryInfo(memoryInfo);
+    return memoryInfo.lowMemory;
+  }
+
+  private void setLevel(Level level) {
+    Log.i(TAG, "Memory level " + this.level + " -> " + level);
+    this.level = level;
+    listener.memoryLevelChanged(level);
+  }
+}
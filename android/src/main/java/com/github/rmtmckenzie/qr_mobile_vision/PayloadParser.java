@@ -0,0 +1,152 @@
+package com.github.rmtmckenzie.qr_mobile_vision;
+
+import com.google.mlkit.vision.barcode.common.Barcode;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Turns a detected barcode into structured fields - its GS1 application identifiers and the
+ * data ML Kit extracted for its value type (url, wifi network, contact details, ...) - so that
+ * the dart side doesn't have to parse raw values on the UI isolate.
+ */
+class PayloadParser {
+  private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+  private PayloadParser() {
+  }
+
+  static Map<String, Object> parse(Barcode barcode) {
+    Map<String, Object> payload = new HashMap<>();
+    payload.put("format", BarcodeFormats.nameOf(barcode.getFormat()));
+    payload.put("valueType", valueTypeName(barcode.getValueType()));
+
+    String rawValue = barcode.getRawValue();
+    byte[] rawBytes = barcode.getRawBytes();
+    if (rawValue == null && rawBytes != null) {
+      // binary content; GS1 element strings are always ASCII so can still be recognised
+      payload.put("rawBytes", rawBytes);
+      rawValue = new String(rawBytes, ISO_8859_1);
+    }
+
+    if (Gs1Parser.isGs1(barcode.getFormat(), rawValue)) {
+      Map<String, String> gs1 = Gs1Parser.parse(rawValue);
+      if (gs1 != null) {
+        payload.put("gs1", gs1);
+      }
+    }
+
+    Map<String, Object> fields = fields(barcode);
+    if (fields != null) {
+      payload.put("fields", fields);
+    }
+    return payload;
+  }
+
+  private static Map<String, Object> fields(Barcode barcode) {
+    Map<String, Object> fields = new HashMap<>();
+    switch (barcode.getValueType()) {
+      case Barcode.TYPE_URL: {
+        Barcode.UrlBookmark url = barcode.getUrl();
+        if (url == null) return null;
+        fields.put("url", url.getUrl());
+        fields.put("title", url.getTitle());
+        return fields;
+      }
+      case Barcode.TYPE_WIFI: {
+        Barcode.WiFi wifi = barcode.getWifi();
+        if (wifi == null) return null;
+        fields.put("ssid", wifi.getSsid());
+        fields.put("password", wifi.getPassword());
+        fields.put("encryptionType", wifiEncryptionName(wifi.getEncryptionType()));
+        return fields;
+      }
+      case Barcode.TYPE_EMAIL: {
+        Barcode.Email email = barcode.getEmail();
+        if (email == null) return null;
+        fields.put("address", email.getAddress());
+        fields.put("subject", email.getSubject());
+        fields.put("body", email.getBody());
+        return fields;
+      }
+      case Barcode.TYPE_PHONE: {
+        Barcode.Phone phone = barcode.getPhone();
+        if (phone == null) return null;
+        fields.put("number", phone.getNumber());
+        return fields;
+      }
+      case Barcode.TYPE_SMS: {
+        Barcode.Sms sms = barcode.getSms();
+        if (sms == null) return null;
+        fields.put("phoneNumber", sms.getPhoneNumber());
+        fields.put("message", sms.getMessage());
+        return fields;
+      }
+      case Barcode.TYPE_GEO: {
+        Barcode.GeoPoint geoPoint = barcode.getGeoPoint();
+        if (geoPoint == null) return null;
+        fields.put("latitude", geoPoint.getLat());
+        fields.put("longitude", geoPoint.getLng());
+        return fields;
+      }
+      case Barcode.TYPE_DRIVER_LICENSE: {
+        Barcode.DriverLicense license = barcode.getDriverLicense();
+        if (license == null) return null;
+        fields.put("licenseNumber", license.getLicenseNumber());
+        fields.put("firstName", license.getFirstName());
+        fields.put("lastName", license.getLastName());
+        fields.put("birthDate", license.getBirthDate());
+        fields.put("expiryDate", license.getExpiryDate());
+        fields.put("issuingCountry", license.getIssuingCountry());
+        return fields;
+      }
+      default:
+        return null;
+    }
+  }
+
+  private static String valueTypeName(int valueType) {
+    switch (valueType) {
+      case Barcode.TYPE_CONTACT_INFO:
+        return "CONTACT_INFO";
+      case Barcode.TYPE_EMAIL:
+        return "EMAIL";
+      case Barcode.TYPE_ISBN:
+        return "ISBN";
+      case Barcode.TYPE_PHONE:
+        return "PHONE";
+      case Barcode.TYPE_PRODUCT:
+        return "PRODUCT";
+      case Barcode.TYPE_SMS:
+        return "SMS";
+      case Barcode.TYPE_TEXT:
+        return "TEXT";
+      case Barcode.TYPE_URL:
+        return "URL";
+      case Barcode.TYPE_WIFI:
+        return "WIFI";
+      case Barcode.TYPE_GEO:
+        return "GEO";
+      case Barcode.TYPE_CALENDAR_EVENT:
+        return "CALENDAR_EVENT";
+      case Barcode.TYPE_DRIVER_LICENSE:
+        return "DRIVER_LICENSE";
+      default:
+        return "UNKNOWN";
+    }
+  }
+
+  private static String wifiEncryptionName(int encryptionType) {
+    switch (encryptionType) {
+      case Barcode.WiFi.TYPE_OPEN:
+        return "OPEN";
+      case Barcode.WiFi.TYPE_WPA:
+        return "WPA";
+      case Barcode.WiFi.TYPE_WEP:
+        return "WEP";
+      default:
+        return "UNKNOWN";
+    }
+  }
+}
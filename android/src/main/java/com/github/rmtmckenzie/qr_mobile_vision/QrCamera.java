@@ -1,5 +1,8 @@
 package com.github.rmtmckenzie.qr_mobile_vision;
 
+import static android.hardware.camera2.CameraDevice.StateCallback.ERROR_CAMERA_DISABLED;
+import static android.hardware.camera2.CameraDevice.StateCallback.ERROR_CAMERA_IN_USE;
+import static android.hardware.camera2.CameraDevice.StateCallback.ERROR_MAX_CAMERAS_IN_USE;
 import static android.hardware.camera2.CameraMetadata.CONTROL_AF_MODE_AUTO;
 import static android.hardware.camera2.CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE;
 import static android.hardware.camera2.CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO;
@@ -9,6 +12,7 @@ import static android.hardware.camera2.CameraMetadata.LENS_FACING_FRONT;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.ImageFormat;
+import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
@@ -17,6 +21,7 @@ import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
 import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.OutputConfiguration;
 import android.hardware.camera2.params.SessionConfiguration;
@@ -24,6 +29,9 @@ import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.media.ImageReader;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Size;
 import android.util.SparseIntArray;
@@ -31,25 +39,61 @@ import android.view.Display;
 import android.view.Surface;
 import android.view.WindowManager;
 
+import androidx.annotation.GuardedBy;
 import androidx.annotation.NonNull;
 
 import com.google.mlkit.vision.common.InputImage;
 
+import io.flutter.view.TextureRegistry;
+
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Implements QrCamera using Camera2 API
  */
 class QrCamera {
 
+  /**
+   * Lifecycle of the camera device and capture session. When the camera is lost - another
+   * app taking it, a camera service error or a failed session configuration - it goes through
+   * RECOVERING and back to OPENING until it runs again.
+   */
+  enum State {
+    IDLE,
+    OPENING,
+    CONFIGURING,
+    RUNNING,
+    RECOVERING,
+    STOPPED
+  }
+
   private boolean isFlashOn = false;
+  private boolean autoTorch = false;
+  private TorchController torchController;
 
   private static final String TAG = "cgr.qrmv.QrCameraC2";
+  private static final long RECOVERY_BASE_DELAY_MS = 250;
+  private static final long RECOVERY_MAX_DELAY_MS = 10000;
+  /**
+   * Recovery attempts, about a minute and a half of retrying, before the camera is given up on.
+   */
+  private static final int MAX_RECOVERY_ATTEMPTS = 12;
   private static final SparseIntArray ORIENTATIONS = new SparseIntArray();
+  /**
+   * Runs camera service queries during startup off the main thread. Shared by all sessions
+   * as the queries are short and rare.
+   */
+  private static final ExecutorService cameraSetupExecutor = Executors.newSingleThreadExecutor(
+    r -> new Thread(r, "qrmv-camera-setup"));
 
   static {
     ORIENTATIONS.append(Surface.ROTATION_0, 90);
@@ -61,24 +105,81 @@ class QrCamera {
   private final int targetWidth;
   private final int targetHeight;
   private final Context context;
-  private final SurfaceTexture texture;
+  private final TextureRegistry.SurfaceProducer surfaceProducer;
   private Size size;
   private Size jpegSize;
-  private ImageReader reader;
+  private Size[] sortedYuvSizes;
+  private MemoryGovernor.Level memoryLevel = MemoryGovernor.Level.NORMAL;
+  private CaptureProfile captureProfile = CaptureProfile.DEFAULT;
+  private CaptureProfile.ExposureCap exposureCap;
+  private AnalysisReader reader;
   private CaptureRequest.Builder previewBuilder;
   private CameraCaptureSession previewSession;
+  private StartupPhases startup;
+  private boolean previewSurfaceLost;
+  private LivenessListener livenessListener;
   private final QrDetector detector;
+  private final QrReaderCallbacks communicator;
+  private final TraceLog.Track traceTrack;
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  private CameraManager manager;
+  private String cameraId;
+  private State state = State.IDLE;
+  private int recoveryAttempt;
+  /**
+   * Bumped for every device opened and whenever the device is closed, so callbacks from devices
+   * that have since been replaced can be told apart even while no device is open.
+   */
+  private int deviceGeneration;
+  private boolean waitingForAvailability;
+  private long downSince;
+  private long totalDowntime;
+  private int recoveries;
   private int sensorOrientation;
   private CameraDevice cameraDevice;
   private CameraCharacteristics cameraCharacteristics;
-  private Frame latestFrame;
 
-  QrCamera(int width, int height, SurfaceTexture texture, Context context, QrDetector detector) {
+  /**
+   * @param surfaceProducer producer of the surface to draw the preview to, or null to run
+   *                        headless with only the analysis stream attached to the capture session.
+   */
+  QrCamera(int width, int height, TextureRegistry.SurfaceProducer surfaceProducer, Context context,
+           QrDetector detector, QrReaderCallbacks communicator, TraceLog.Track traceTrack) {
     this.targetWidth = width;
     this.targetHeight = height;
     this.context = context;
-    this.texture = texture;
+    this.surfaceProducer = surfaceProducer;
     this.detector = detector;
+    this.communicator = communicator;
+    this.traceTrack = traceTrack;
+
+    if (surfaceProducer != null) {
+      surfaceProducer.setCallback(new TextureRegistry.SurfaceProducer.Callback() {
+        @Override
+        public void onSurfaceAvailable() {
+          previewSurfaceAvailable();
+        }
+
+        @Override
+        public void onSurfaceCleanup() {
+          previewSurfaceCleanup();
+        }
+      });
+    }
+  }
+
+  /**
+   * Told when frames arrive and when the preview surface goes away or comes back, so that the
+   * session's liveness can be judged without a timer of its own.
+   */
+  interface LivenessListener {
+    void frameArrived();
+
+    void previewSurfaceChanged(boolean available);
+  }
+
+  void setLivenessListener(LivenessListener livenessListener) {
+    this.livenessListener = livenessListener;
   }
 
   public int getWidth() {
@@ -140,72 +241,242 @@ class QrCamera {
     return result;
   }
 
-  public void start(final int cameraDirection) throws QrReader.Exception {
-    CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+  /**
+   * Starts the camera asynchronously: the camera is chosen and its characteristics read on a
+   * background thread, then it is opened. Progress and failure are reported to {@code startup}.
+   */
+  public void start(final int cameraDirection, final LensSelector.Preference lensPreference, final StartupPhases startup) {
+    this.startup = startup;
+    manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
 
     if (manager == null) {
       throw new RuntimeException("Unable to get camera manager.");
     }
 
-    String cameraId = null;
-    try {
-      String[] cameraIdList = manager.getCameraIdList();
-      for (String id : cameraIdList) {
-        CameraCharacteristics cameraCharacteristics = manager.getCameraCharacteristics(id);
-        Integer integer = cameraCharacteristics.get(CameraCharacteristics.LENS_FACING);
-        if (integer != null && integer == (cameraDirection == 0 ? LENS_FACING_FRONT : LENS_FACING_BACK)) {
-          cameraId = id;
-          break;
-        }
+    cameraSetupExecutor.execute(() -> {
+      try {
+        selectCamera(cameraDirection, lensPreference);
+        handler.post(this::cameraSelected);
+      } catch (final QrReader.Exception | CameraAccessException | RuntimeException e) {
+        handler.post(() -> startup.fail(e));
       }
-    } catch (CameraAccessException e) {
-      Log.w(TAG, "Error getting back camera.", e);
-      throw new RuntimeException(e);
+    });
+  }
+
+  /**
+   * Picks the camera and works out stream sizes. Only queries the camera service, so it runs
+   * on {@link #cameraSetupExecutor}.
+   */
+  private void selectCamera(int cameraDirection, LensSelector.Preference lensPreference)
+    throws QrReader.Exception, CameraAccessException {
+    cameraId = null;
+    List<String> ranking = LensSelector.rank(manager, cameraDirection == 0 ? LENS_FACING_FRONT : LENS_FACING_BACK,
+      lensPreference, targetWidth, targetHeight);
+    if (!ranking.isEmpty()) {
+      cameraId = ranking.get(0);
     }
 
     if (cameraId == null) {
       throw new QrReader.Exception(QrReader.Exception.Reason.noBackCamera);
     }
 
-    try {
-      cameraCharacteristics = manager.getCameraCharacteristics(cameraId);
-      StreamConfigurationMap map = cameraCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-      Integer sensorOrientationInteger = cameraCharacteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
-      sensorOrientation = sensorOrientationInteger == null ? 0 : sensorOrientationInteger;
+    cameraCharacteristics = manager.getCameraCharacteristics(cameraId);
+    StreamConfigurationMap map = cameraCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+    Integer sensorOrientationInteger = cameraCharacteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+    sensorOrientation = sensorOrientationInteger == null ? 0 : sensorOrientationInteger;
 
-      Log.i(TAG, "Device target size: " + targetWidth + "x" + targetHeight);
-      Log.i(TAG, "Camera sensor flipped: " + (sensorOrientation % 180 != 0));
+    Log.i(TAG, "Device target size: " + targetWidth + "x" + targetHeight);
+    Log.i(TAG, "Camera sensor flipped: " + (sensorOrientation % 180 != 0));
 
-      assert map != null;
+    assert map != null;
+    sortedYuvSizes = sortSizesAscending(map.getOutputSizes(ImageFormat.YUV_420_888));
+    if (surfaceProducer != null) {
       Size[] sortedSurfaceTextureSizes = sortSizesAscending(map.getOutputSizes(SurfaceTexture.class));
       size = getAppropriateSize(sortedSurfaceTextureSizes);
       Log.i(TAG, "Set preview size: " + size);
 
       Size[] sortedJpegSizes = sortSizesAscending(map.getOutputSizes(ImageFormat.JPEG));
       jpegSize = getAppropriateSize(sortedJpegSizes);
-      Log.i(TAG, "Set camera size: " + jpegSize);
+    } else {
+      // Headless: the analysis stream is the only output so it can be sized from the sizes
+      // the camera supports for YUV directly rather than matching a preview.
+      jpegSize = getAppropriateSize(sortedYuvSizes);
+      size = jpegSize;
+    }
+    Log.i(TAG, "Set camera size: " + jpegSize);
+  }
 
-      manager.openCamera(cameraId, new CameraDevice.StateCallback() {
-        @Override
-        public void onOpened(@NonNull CameraDevice device) {
-          cameraDevice = device;
-          startCamera();
-        }
+  private void cameraSelected() {
+    if (state == State.STOPPED) {
+      return;
+    }
+    startup.done(StartupPhases.CAMERA_SETUP);
 
-        @Override
-        public void onDisconnected(@NonNull CameraDevice device) {
-        }
+    Boolean flashAvailable = cameraCharacteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+    if (autoTorch && Boolean.TRUE.equals(flashAvailable)) {
+      torchController = new TorchController(this::setTorch);
+      detector.setDetectionListener(torchController);
+    }
 
-        @Override
-        public void onError(@NonNull CameraDevice device, int error) {
-          Log.w(TAG, "Error opening camera: " + error);
-        }
-      }, null);
+    manager.registerAvailabilityCallback(availabilityCallback, handler);
+    openCamera();
+  }
+
+  private class DeviceCallback extends CameraDevice.StateCallback {
+    private final int generation;
+
+    DeviceCallback(int generation) {
+      this.generation = generation;
+    }
+
+    @Override
+    public void onOpened(@NonNull CameraDevice device) {
+      if (state == State.STOPPED || generation != deviceGeneration) {
+        device.close();
+        return;
+      }
+      cameraDevice = device;
+      startup.done(StartupPhases.CAMERA_OPEN);
+      transition(State.CONFIGURING, null);
+      if (previewSurfaceLost) {
+        // the session is built once the engine gives us a new preview surface
+        return;
+      }
+      startCamera();
+    }
+
+    @Override
+    public void onDisconnected(@NonNull CameraDevice device) {
+      device.close();
+      if (generation != deviceGeneration) {
+        // a device from before the last recovery
+        return;
+      }
+      // usually another app with higher priority took the camera, so it is worth retrying
+      // as soon as it becomes available again.
+      waitingForAvailability = true;
+      recover("disconnected");
+    }
+
+    @Override
+    public void onError(@NonNull CameraDevice device, int error) {
+      Log.w(TAG, "Error opening camera: " + error);
+      device.close();
+      if (generation != deviceGeneration) {
+        return;
+      }
+      if (error == ERROR_CAMERA_DISABLED) {
+        // disabled by device policy, which retrying won't change
+        giveUp("error " + error);
+        return;
+      }
+      waitingForAvailability = error == ERROR_CAMERA_IN_USE || error == ERROR_MAX_CAMERAS_IN_USE;
+      recover("error " + error);
+    }
+  }
+
+  private final CameraManager.AvailabilityCallback availabilityCallback = new CameraManager.AvailabilityCallback() {
+    @Override
+    public void onCameraAvailable(@NonNull String id) {
+      if (state == State.RECOVERING && waitingForAvailability && id.equals(cameraId)) {
+        Log.i(TAG, "Camera " + id + " available again, reopening.");
+        handler.removeCallbacks(reopenCamera);
+        openCamera();
+      }
+    }
+  };
+
+  private final Runnable reopenCamera = new Runnable() {
+    @Override
+    public void run() {
+      openCamera();
+    }
+  };
+
+  private void openCamera() {
+    if (state == State.STOPPED) {
+      return;
+    }
+    waitingForAvailability = false;
+    transition(State.OPENING, null);
+    try {
+      manager.openCamera(cameraId, new DeviceCallback(++deviceGeneration), handler);
+    } catch (SecurityException | IllegalArgumentException e) {
+      // the permission was revoked or the camera no longer exists, neither of which retrying fixes
+      Log.w(TAG, "Error opening camera.", e);
+      giveUp("open failed: " + e.getMessage());
     } catch (CameraAccessException e) {
-      Log.w(TAG, "Error getting camera configuration.", e);
+      Log.w(TAG, "Error opening camera.", e);
+      waitingForAvailability = true;
+      recover("open failed: " + e.getMessage());
     }
   }
 
+  /**
+   * Tears down the device and session and schedules reopening them, backing off exponentially
+   * from {@link #RECOVERY_BASE_DELAY_MS} up to {@link #RECOVERY_MAX_DELAY_MS} between attempts,
+   * for up to {@link #MAX_RECOVERY_ATTEMPTS} attempts in a row.
+   */
+  private void recover(String reason) {
+    if (state == State.STOPPED || state == State.RECOVERING) {
+      return;
+    }
+    if (recoveryAttempt >= MAX_RECOVERY_ATTEMPTS) {
+      giveUp(reason + " after " + recoveryAttempt + " attempts");
+      return;
+    }
+    if (downSince == 0) {
+      downSince = SystemClock.elapsedRealtime();
+    }
+    closeSession();
+
+    long delay = Math.min(RECOVERY_BASE_DELAY_MS << Math.min(recoveryAttempt, 10), RECOVERY_MAX_DELAY_MS);
+    recoveryAttempt++;
+    Log.w(TAG, "Camera lost (" + reason + "), attempt " + recoveryAttempt + " to recover in " + delay + "ms");
+    transition(State.RECOVERING, reason);
+    handler.postDelayed(reopenCamera, delay);
+  }
+
+  /**
+   * Stops for good after an error retrying can't fix, or too many failed recoveries. A start
+   * still in progress fails; otherwise the session is told the camera is unavailable.
+   */
+  private void giveUp(String reason) {
+    Log.w(TAG, "Giving up on the camera: " + reason);
+    stop("gave up: " + reason);
+    if (startup != null) {
+      startup.fail(new QrReader.Exception(QrReader.Exception.Reason.cameraUnavailable));
+    }
+    communicator.cameraUnavailable();
+  }
+
+  private void transition(State newState, String reason) {
+    state = newState;
+    if (startup != null && newState == State.RUNNING) {
+      // a camera lost during startup holds up the start until it is recovered or given up on
+      startup.done(StartupPhases.CAMERA);
+    }
+
+    Map<String, Object> event = new HashMap<>();
+    if (newState == State.RUNNING) {
+      if (downSince != 0) {
+        long downtime = SystemClock.elapsedRealtime() - downSince;
+        downSince = 0;
+        totalDowntime += downtime;
+        recoveries++;
+        Log.i(TAG, "Camera recovered after " + downtime + "ms");
+        event.put("downtimeMs", downtime);
+      }
+      recoveryAttempt = 0;
+    }
+    event.put("state", newState.name());
+    event.put("reason", reason);
+    event.put("attempt", recoveryAttempt);
+    event.put("recoveries", recoveries);
+    event.put("totalDowntimeMs", totalDowntime);
+    communicator.cameraStateChanged(event);
+  }
+
   private Integer afMode(CameraCharacteristics cameraCharacteristics) {
 
     int[] afModes = cameraCharacteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
@@ -230,13 +501,71 @@ class QrCamera {
     }
   }
 
+  /**
+   * The analysis stream's ImageReader, counting the images the detector still has open. The
+   * reader is replaced whenever the session is rebuilt, but closing it would free the buffers
+   * of images still being decoded or captured, so it is retired instead and only closed once
+   * the last of them is closed.
+   */
+  private static class AnalysisReader {
+    final ImageReader reader;
+    @GuardedBy("this")
+    private int openImages;
+    @GuardedBy("this")
+    private boolean retired;
+
+    AnalysisReader(ImageReader reader) {
+      this.reader = reader;
+    }
+
+    /**
+     * @return the latest image, or null if there is none or the reader has been retired.
+     */
+    synchronized Image acquireLatestImage() {
+      if (retired) {
+        return null;
+      }
+      Image image = reader.acquireLatestImage();
+      if (image != null) {
+        openImages++;
+      }
+      return image;
+    }
+
+    synchronized void release(Image image) {
+      image.close();
+      if (--openImages == 0 && retired) {
+        reader.close();
+      }
+    }
+
+    /**
+     * Stops taking images, closing the reader now if none are open or else once they are.
+     */
+    synchronized void retire() {
+      if (retired) {
+        return;
+      }
+      retired = true;
+      reader.setOnImageAvailableListener(null, null);
+      if (openImages == 0) {
+        reader.close();
+      }
+    }
+  }
+
   static class Frame implements QrDetector.Frame {
     final Image image;
     final int firebaseOrientation;
+    final TraceLog.FrameEvent traceEvent;
+    private final AnalysisReader source;
+    private final AtomicBoolean closed = new AtomicBoolean();
 
-    Frame(Image image, int firebaseOrientation) {
+    Frame(Image image, AnalysisReader source, int firebaseOrientation, TraceLog.FrameEvent traceEvent) {
       this.image = image;
+      this.source = source;
       this.firebaseOrientation = firebaseOrientation;
+      this.traceEvent = traceEvent;
     }
 
     @Override
@@ -244,9 +573,34 @@ class QrCamera {
       return InputImage.fromMediaImage(image, firebaseOrientation);
     }
 
+    @Override
+    public InputImage toImage(Rect region) {
+      return CandidateCascade.crop(image, region, firebaseOrientation);
+    }
+
+    @Override
+    public Image image() {
+      return image;
+    }
+
+    @Override
+    public int rotation() {
+      return firebaseOrientation;
+    }
+
+    /**
+     * Frames are closed from the main thread and from the decode pool, but only count once.
+     */
     @Override
     public void close() {
-      image.close();
+      if (!closed.getAndSet(true)) {
+        source.release(image);
+      }
+    }
+
+    @Override
+    public TraceLog.FrameEvent traceEvent() {
+      return traceEvent;
     }
 
   }
@@ -254,33 +608,49 @@ class QrCamera {
   private void startCamera() {
     List<Surface> list = new ArrayList<>();
 
-    final int width = jpegSize.getWidth(), height = jpegSize.getHeight();
-    reader = ImageReader.newInstance(width, height, ImageFormat.YUV_420_888, 5);
+    final Size analysisSize = analysisSize();
+    if (reader != null) {
+      reader.retire();
+    }
+    final AnalysisReader analysisReader = new AnalysisReader(ImageReader.newInstance(analysisSize.getWidth(),
+      analysisSize.getHeight(), ImageFormat.YUV_420_888, maxImages()));
+    reader = analysisReader;
 
-    list.add(reader.getSurface());
+    list.add(analysisReader.reader.getSurface());
 
     ImageReader.OnImageAvailableListener imageAvailableListener = new ImageReader.OnImageAvailableListener() {
       @Override
-      public void onImageAvailable(ImageReader reader) {
+      public void onImageAvailable(ImageReader imageReader) {
+        TraceLog.beginSection(TraceLog.ACQUIRE);
         try {
-          Image image = reader.acquireLatestImage();
+          if (livenessListener != null) {
+            livenessListener.frameArrived();
+          }
+          Image image = analysisReader.acquireLatestImage();
           if (image == null) return;
-          latestFrame = new Frame(image, getFirebaseOrientation());
-          detector.detect(latestFrame);
+          if (torchController != null) {
+            torchController.onFrame(image);
+          }
+          detector.detect(new Frame(image, analysisReader, getFirebaseOrientation(), traceTrack.begin(image.getTimestamp())));
         } catch (Throwable t) {
           t.printStackTrace();
+        } finally {
+          TraceLog.endSection();
         }
       }
     };
 
-    reader.setOnImageAvailableListener(imageAvailableListener, null);
+    analysisReader.reader.setOnImageAvailableListener(imageAvailableListener, null);
 
-    texture.setDefaultBufferSize(size.getWidth(), size.getHeight());
-    list.add(new Surface(texture));
+    if (surfaceProducer != null) {
+      surfaceProducer.setSize(size.getWidth(), size.getHeight());
+      list.add(surfaceProducer.getSurface());
+    }
     try {
       previewBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-      previewBuilder.addTarget(list.get(0));
-      previewBuilder.addTarget(list.get(1));
+      for (Surface surface : list) {
+        previewBuilder.addTarget(surface);
+      }
 
       Integer afMode = afMode(cameraCharacteristics);
 
@@ -295,8 +665,13 @@ class QrCamera {
           previewBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CaptureRequest.CONTROL_AF_TRIGGER_CANCEL);
         }
       }
+      exposureCap = captureProfile.apply(previewBuilder, cameraCharacteristics);
+      if (isFlashOn) {
+        previewBuilder.set(CaptureRequest.FLASH_MODE, CameraMetadata.FLASH_MODE_TORCH);
+      }
     } catch (Exception e) {
       e.printStackTrace();
+      recover("request failed: " + e.getMessage());
       return;
     }
 
@@ -315,13 +690,12 @@ class QrCamera {
             new CameraCaptureSession.StateCallback() {
               @Override
               public void onConfigured(@NonNull CameraCaptureSession session) {
-                previewSession = session;
-                startPreview();
+                sessionConfigured(session);
               }
 
               @Override
               public void onConfigureFailed(@NonNull CameraCaptureSession session) {
-                System.out.println("### Configuration Fail ###");
+                sessionConfigureFailed(session);
               }
             }
           )
@@ -331,6 +705,7 @@ class QrCamera {
       }
     } catch (Throwable t) {
       t.printStackTrace();
+      recover("session failed: " + t.getMessage());
     }
   }
 
@@ -340,29 +715,94 @@ class QrCamera {
     cameraDevice.createCaptureSession(list, new CameraCaptureSession.StateCallback() {
       @Override
       public void onConfigured(@NonNull CameraCaptureSession session) {
-        previewSession = session;
-        startPreview();
+        sessionConfigured(session);
       }
 
       @Override
       public void onConfigureFailed(@NonNull CameraCaptureSession session) {
-        System.out.println("### Configuration Fail ###");
+        sessionConfigureFailed(session);
       }
-    }, null);
+    }, handler);
   }
 
-  private void startPreview() {
-    CameraCaptureSession.CaptureCallback listener = new CameraCaptureSession.CaptureCallback() {
-      @Override
-      public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
-        super.onCaptureCompleted(session, request, result);
+  /**
+   * The engine is about to destroy the preview surface, e.g. because the app went to the
+   * background. The session drawing into it has to go before the surface does.
+   */
+  private void previewSurfaceCleanup() {
+    Log.i(TAG, "Preview surface cleaned up, closing capture session");
+    previewSurfaceLost = true;
+    if (livenessListener != null) {
+      livenessListener.previewSurfaceChanged(false);
+    }
+    if (previewSession != null) {
+      try {
+        previewSession.stopRepeating();
+      } catch (CameraAccessException | IllegalStateException e) {
+        Log.w(TAG, "Error stopping capture session.", e);
       }
-    };
+      previewSession.close();
+      previewSession = null;
+    }
+  }
+
+  /**
+   * A new preview surface is available, so rebuild the session around it.
+   */
+  private void previewSurfaceAvailable() {
+    if (!previewSurfaceLost) {
+      return;
+    }
+    previewSurfaceLost = false;
+    if (livenessListener != null) {
+      livenessListener.previewSurfaceChanged(true);
+    }
+    if (cameraDevice == null || state == State.STOPPED || state == State.RECOVERING) {
+      // the session is built with the new surface once the camera is reopened
+      return;
+    }
+    Log.i(TAG, "Preview surface recreated, reconfiguring capture session");
+    transition(State.CONFIGURING, "surface recreated");
+    startCamera();
+  }
+
+  private void sessionConfigured(CameraCaptureSession session) {
+    if (state == State.STOPPED || session.getDevice() != cameraDevice) {
+      session.close();
+      return;
+    }
+    previewSession = session;
+    startPreview();
+    transition(State.RUNNING, null);
+    // the memory level may have changed while the session was being configured
+    applyMemoryLevel();
+  }
+
+  private void sessionConfigureFailed(CameraCaptureSession session) {
+    Log.w(TAG, "Capture session configuration failed");
+    if (session.getDevice() == cameraDevice) {
+      recover("configure failed");
+    }
+  }
+
+  private final CameraCaptureSession.CaptureCallback captureCallback = new CameraCaptureSession.CaptureCallback() {
+    @Override
+    public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
+      super.onCaptureCompleted(session, request, result);
+      if (torchController != null) {
+        torchController.onExposure(result.get(CaptureResult.SENSOR_EXPOSURE_TIME), result.get(CaptureResult.SENSOR_SENSITIVITY));
+      }
+      if (exposureCap != null && session == previewSession && exposureCap.onCaptureCompleted(result)) {
+        startPreview();
+      }
+    }
+  };
 
+  private void startPreview() {
     if (cameraDevice == null) return;
 
     try {
-      previewSession.setRepeatingRequest(previewBuilder.build(), listener, null);
+      previewSession.setRepeatingRequest(previewBuilder.build(), captureCallback, null);
     } catch (Exception e) {
       e.printStackTrace();
     }
@@ -371,7 +811,7 @@ class QrCamera {
   public void turnOnFlashLight() {
     try {
       previewBuilder.set(CaptureRequest.FLASH_MODE, CameraMetadata.FLASH_MODE_TORCH);
-      previewSession.setRepeatingRequest(previewBuilder.build(), null, null);
+      previewSession.setRepeatingRequest(previewBuilder.build(), captureCallback, null);
     } catch (Exception e) {
       e.printStackTrace();
     }
@@ -380,13 +820,106 @@ class QrCamera {
   public void turnOffFlashLight() {
     try {
       previewBuilder.set(CaptureRequest.FLASH_MODE, CameraMetadata.FLASH_MODE_OFF);
-      previewSession.setRepeatingRequest(previewBuilder.build(), null, null);
+      previewSession.setRepeatingRequest(previewBuilder.build(), captureCallback, null);
     } catch (Exception e) {
       e.printStackTrace();
     }
   }
 
+  /**
+   * Trades analysis resolution and camera buffers for memory. Takes effect straight away if
+   * the camera is running by rebuilding the capture session, otherwise when it is next built.
+   */
+  void setMemoryLevel(MemoryGovernor.Level level) {
+    if (level == memoryLevel) {
+      return;
+    }
+    memoryLevel = level;
+    applyMemoryLevel();
+  }
+
+  private void applyMemoryLevel() {
+    if (state != State.RUNNING || reader == null || cameraDevice == null || previewSurfaceLost) {
+      return;
+    }
+    Size analysisSize = analysisSize();
+    ImageReader current = reader.reader;
+    if (current.getMaxImages() == maxImages() && current.getWidth() == analysisSize.getWidth()
+      && current.getHeight() == analysisSize.getHeight()) {
+      return;
+    }
+    Log.i(TAG, "Memory level " + memoryLevel + ", analysing at " + analysisSize + " with "
+      + maxImages() + " buffers");
+    if (previewSession != null) {
+      previewSession.close();
+      previewSession = null;
+    }
+    // frames the detector still holds are closed by it, startCamera only retires their reader
+    transition(State.CONFIGURING, "memory level " + memoryLevel);
+    startCamera();
+  }
+
+  /**
+   * Buffers for the analysis stream: those the memory level allows, plus one for each extra
+   * frame the capture profile lets the detector work on at once.
+   */
+  private int maxImages() {
+    if (memoryLevel == MemoryGovernor.Level.CRITICAL) {
+      return memoryLevel.maxImages;
+    }
+    return memoryLevel.maxImages + captureProfile.framesInFlight - 1;
+  }
+
+  /**
+   * Must be called before {@link #start}.
+   */
+  void setCaptureProfile(CaptureProfile captureProfile) {
+    this.captureProfile = captureProfile;
+  }
+
+  /**
+   * The size of the analysis stream: the camera size, or under memory pressure the supported
+   * YUV size closest to the scaled down target size.
+   */
+  private Size analysisSize() {
+    if (memoryLevel.analysisScale >= 1f || sortedYuvSizes == null || sortedYuvSizes.length == 0) {
+      return jpegSize;
+    }
+    Size scaled = getAppropriateSize(sortedYuvSizes, (int) (targetWidth * memoryLevel.analysisScale),
+      (int) (targetHeight * memoryLevel.analysisScale));
+    if ((long) scaled.getWidth() * scaled.getHeight() >= (long) jpegSize.getWidth() * jpegSize.getHeight()) {
+      return jpegSize;
+    }
+    return scaled;
+  }
+
+  /**
+   * Lets a {@link TorchController} turn the torch on and off from frame brightness. Must be
+   * called before {@link #start}; ignored for cameras without a flash unit.
+   */
+  void setAutoTorch(boolean autoTorch) {
+    this.autoTorch = autoTorch;
+  }
+
+  private void setTorch(boolean on) {
+    if (on == isFlashOn) {
+      return;
+    }
+    if (on) {
+      turnOnFlashLight();
+    } else {
+      turnOffFlashLight();
+    }
+    isFlashOn = on;
+  }
+
   public void toggleFlash() {
+    // switching the torch by hand takes over from automatic control
+    if (torchController != null) {
+      detector.setDetectionListener(null);
+      torchController = null;
+    }
+
     if (isFlashOn) {
       turnOffFlashLight();
       isFlashOn = false;
@@ -397,13 +930,34 @@ class QrCamera {
   }
 
   public void stop() {
+    stop(null);
+  }
+
+  public void stop(String reason) {
+    if (state != State.STOPPED) {
+      transition(State.STOPPED, reason);
+    }
+    handler.removeCallbacks(reopenCamera);
+    if (manager != null) {
+      manager.unregisterAvailabilityCallback(availabilityCallback);
+    }
+    closeSession();
+  }
+
+  private void closeSession() {
+    if (previewSession != null) {
+      previewSession.close();
+      previewSession = null;
+    }
     if (cameraDevice != null) {
       cameraDevice.close();
+      cameraDevice = null;
     }
+    // callbacks from the device closed here, or one still opening, are stale from now on
+    deviceGeneration++;
     if (reader != null) {
-      if (latestFrame != null) latestFrame.close();
-      latestFrame = null;
-      reader.close();
+      reader.retire();
+      reader = null;
     }
   }
 
@@ -411,6 +965,10 @@ class QrCamera {
    * Takes a sorted ascending array of sizes and returns the size closest to targetHeight & targetWidth
    */
   private Size getAppropriateSize(Size[] sizes) {
+    return getAppropriateSize(sizes, targetWidth, targetHeight);
+  }
+
+  private Size getAppropriateSize(Size[] sizes, int targetWidth, int targetHeight) {
     Size s = sizes[0];
 
     // assume sizes is never 0
@@ -1,92 +1,437 @@
 package com.github.rmtmckenzie.qr_mobile_vision;
 
+import android.graphics.Rect;
+import android.media.Image;
 import android.util.Log;
 
 import androidx.annotation.GuardedBy;
 import androidx.annotation.NonNull;
 
 import com.google.android.gms.tasks.OnFailureListener;
-import com.google.android.gms.tasks.OnSuccessListener;
 import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskExecutors;
 import com.google.mlkit.vision.barcode.BarcodeScanner;
-import com.google.mlkit.vision.barcode.BarcodeScannerOptions;
-import com.google.mlkit.vision.barcode.BarcodeScanning;
 import com.google.mlkit.vision.barcode.common.Barcode;
 import com.google.mlkit.vision.common.InputImage;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Allows QrCamera classes to send frames to a Detector
  */
 
-class QrDetector implements OnSuccessListener<List<Barcode>>, OnFailureListener {
+class QrDetector implements OnFailureListener {
     private static final String TAG = "cgr.qrmv.QrDetector";
+    private static final int WARM_UP_SIZE = 32;
     private final QrReaderCallbacks communicator;
+    private final DecodePool.Lease scannerLease;
     private final BarcodeScanner detector;
+    private final TraceLog.Track traceTrack;
 
     public interface Frame {
         InputImage toImage();
 
+        /**
+         * @return just {@code region} of the frame, for the scanner to decode.
+         */
+        InputImage toImage(Rect region);
+
+        /**
+         * @return the camera image, for the candidate cascade to look at.
+         */
+        Image image();
+
+        /**
+         * @return how far the image has to be turned clockwise to be upright, in degrees.
+         */
+        int rotation();
+
         void close();
+
+        /**
+         * @return the trace event recording this frame's progress, or null if not tracing.
+         */
+        TraceLog.FrameEvent traceEvent();
+    }
+
+    /**
+     * Told how many barcodes were found in each processed frame, including frames with none.
+     */
+    interface DetectionListener {
+        void detected(int barcodeCount);
+    }
+
+    /**
+     * A barcode as it will be delivered: its raw value and, when payload parsing is on, its
+     * structured fields.
+     */
+    static class Read {
+        final String data;
+        final Map<String, Object> payload;
+
+        Read(String data, Map<String, Object> payload) {
+            this.data = data;
+            this.payload = payload;
+        }
     }
 
+    /**
+     * The reads that passed the filter, and how many barcodes were found before filtering.
+     */
+    private static class Detection {
+        final int found;
+        final List<Read> reads;
+        /**
+         * The union of the reads' bounding boxes, in the decoded image's upright coordinates,
+         * or null if none had one.
+         */
+        final Rect bounds;
+
+        Detection(int found, List<Read> reads, Rect bounds) {
+            this.found = found;
+            this.reads = reads;
+            this.bounds = bounds;
+        }
+    }
+
+    private DetectionListener detectionListener;
+    private boolean parsePayloads;
+    private ReadFilter filter;
+    private CandidateCascade cascade;
+    private EvidenceCapture evidence;
+
     @GuardedBy("this")
     private Frame latestFrame;
 
     @GuardedBy("this")
-    private Frame processingFrame;
+    private int framesInFlight;
+
+    @GuardedBy("this")
+    private int maxFramesInFlight = 1;
+
+    @GuardedBy("this")
+    private boolean closed;
+
+    /**
+     * The warm-up decode is still running on the scanner.
+     */
+    @GuardedBy("this")
+    private boolean warmingUp;
+
+    /**
+     * Drop frames that arrive while one is being decoded instead of holding on to the latest,
+     * so that the detector never holds more than one camera buffer.
+     */
+    @GuardedBy("this")
+    private boolean dropWhileBusy;
 
-    QrDetector(QrReaderCallbacks communicator, BarcodeScannerOptions options) {
+    QrDetector(QrReaderCallbacks communicator, DecodePool.Lease scannerLease, TraceLog.Track traceTrack) {
         this.communicator = communicator;
-        this.detector = BarcodeScanning.getClient(options);
+        this.scannerLease = scannerLease;
+        this.detector = scannerLease.scanner;
+        this.traceTrack = traceTrack;
+    }
+
+    void setDetectionListener(DetectionListener detectionListener) {
+        this.detectionListener = detectionListener;
+    }
+
+    /**
+     * Parse each barcode into structured fields with {@link PayloadParser}. Parsing runs on the
+     * decode pool rather than the main thread.
+     */
+    void setParsePayloads(boolean parsePayloads) {
+        this.parsePayloads = parsePayloads;
+    }
+
+    /**
+     * Runs a decode of a blank image so that the scanner loads its model now, while the camera
+     * is starting, rather than on the first frame. {@code done} is called on the main thread
+     * whether or not the decode succeeds.
+     */
+    void warmUp(final Runnable done) {
+        synchronized (this) {
+            warmingUp = true;
+        }
+        byte[] nv21 = new byte[WARM_UP_SIZE * WARM_UP_SIZE * 3 / 2];
+        InputImage image = InputImage.fromByteArray(nv21, WARM_UP_SIZE, WARM_UP_SIZE, 0, InputImage.IMAGE_FORMAT_NV21);
+        detector.process(image).addOnCompleteListener((Task<List<Barcode>> task) -> {
+            synchronized (QrDetector.this) {
+                warmingUp = false;
+                releaseIfIdle();
+            }
+            done.run();
+        });
     }
 
-    void detect(Frame frame) {
+    /**
+     * Stops processing new frames. Frames already being decoded finish, but their reads are
+     * dropped; the scanner goes back to the shared pool once nothing is running on it.
+     */
+    synchronized void close() {
+        closed = true;
         if (latestFrame != null) latestFrame.close();
+        latestFrame = null;
+        releaseIfIdle();
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Gives the scanner back and stops evidence capture once closed and no decode is using
+     * them any more. The scanner may be shared, so releasing it earlier could close it under
+     * a running decode.
+     */
+    @GuardedBy("this")
+    private void releaseIfIdle() {
+        if (closed && framesInFlight == 0 && !warmingUp) {
+            scannerLease.release();
+            if (evidence != null) evidence.close();
+        }
+    }
+
+    /**
+     * Only deliver reads that pass {@code filter}, or every read if it is null. Filtering runs
+     * on the decode pool along with payload parsing.
+     */
+    void setFilter(ReadFilter filter) {
+        this.filter = filter;
+    }
+
+    ReadFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Look at each frame with {@code cascade} first, and only decode the frames - and the parts
+     * of them - it finds candidates in. The cascade and the crop run on the decode pool. Null
+     * decodes every frame in full.
+     */
+    void setCandidateCascade(CandidateCascade cascade) {
+        this.cascade = cascade;
+    }
+
+    CandidateCascade getCandidateCascade() {
+        return cascade;
+    }
+
+    /**
+     * Save the part of the frame that was decoded whenever a read is delivered from it, and
+     * pass the path it is saved to along with the read.
+     */
+    void setEvidenceCapture(EvidenceCapture evidence) {
+        this.evidence = evidence;
+    }
+
+    /**
+     * How many frames may be decoding at once. More than one keeps the scanner busy at high
+     * frame rates, as the next frame is already converted and queued when one finishes, at the
+     * cost of holding more camera buffers.
+     */
+    synchronized void setMaxFramesInFlight(int maxFramesInFlight) {
+        this.maxFramesInFlight = Math.max(1, maxFramesInFlight);
+    }
+
+    synchronized void setMemoryLevel(MemoryGovernor.Level level) {
+        dropWhileBusy = level == MemoryGovernor.Level.CRITICAL;
+        if (dropWhileBusy && latestFrame != null) {
+            skip(latestFrame);
+            latestFrame = null;
+        }
+    }
+
+    synchronized void detect(Frame frame) {
+        if (closed) {
+            frame.close();
+            return;
+        }
+        // under memory pressure only one frame is held at a time
+        int maxInFlight = dropWhileBusy ? 1 : maxFramesInFlight;
+        if (framesInFlight < maxInFlight) {
+            framesInFlight++;
+            processFrame(frame);
+            return;
+        }
+        if (dropWhileBusy) {
+            skip(frame);
+            return;
+        }
+        if (latestFrame != null) {
+            skip(latestFrame);
+        }
         latestFrame = frame;
+    }
 
-        if (processingFrame == null) {
-            processLatest();
+    private void skip(Frame frame) {
+        TraceLog.FrameEvent skipped = frame.traceEvent();
+        if (skipped != null) {
+            skipped.markSkipped();
+            traceTrack.commit(skipped);
         }
+        frame.close();
     }
 
+    /**
+     * Called when a frame is done with, to start on the latest frame that came in meanwhile.
+     */
     private synchronized void processLatest() {
-        if (processingFrame != null) processingFrame.close();
-        processingFrame = latestFrame;
+        framesInFlight--;
+        Frame next = latestFrame;
         latestFrame = null;
-        if (processingFrame != null) {
-            processFrame(processingFrame);
+        if (next != null && closed) {
+            next.close();
+        } else if (next != null) {
+            framesInFlight++;
+            processFrame(next);
+        }
+        releaseIfIdle();
+    }
+
+    private void processFrame(final Frame frame) {
+        final CandidateCascade candidateCascade = cascade;
+        if (candidateCascade == null) {
+            // wrapping the camera image is cheap enough to do here
+            convertAndDecode(frame, null);
+            return;
+        }
+        // scanning the frame and copying out the region are not, so they run on the pool
+        try {
+            scannerLease.executor().execute(() -> convertAndDecode(frame, candidateCascade));
+        } catch (RejectedExecutionException e) {
+            // the pool has been shut down along with the plugin
+            frame.close();
+            framesInFlight--;
+            releaseIfIdle();
         }
     }
 
-    private void processFrame(Frame frame) {
+    /**
+     * Turns {@code frame} into an image for the scanner, checking it with {@code candidateCascade}
+     * first if there is one, and starts decoding it. Runs on the pool when there is a cascade.
+     */
+    private void convertAndDecode(final Frame frame, final CandidateCascade candidateCascade) {
+        final TraceLog.FrameEvent trace = frame.traceEvent();
+        CandidateCascade.Verdict verdict = null;
+        Rect region = null;
         InputImage image;
+        TraceLog.beginSection(TraceLog.CONVERT);
         try {
-            image = frame.toImage();
+            if (trace != null) trace.convertStartNs = System.nanoTime();
+            if (candidateCascade != null) {
+                CandidateCascade.Decision decision = candidateCascade.inspect(frame.image());
+                verdict = decision.verdict;
+                region = decision.region();
+                if (trace != null) {
+                    trace.cascadeEndNs = System.nanoTime();
+                    trace.cascade = verdict.name();
+                }
+            }
+            if (verdict == CandidateCascade.Verdict.SKIP) {
+                image = null;
+            } else {
+                image = region != null ? frame.toImage(region) : frame.toImage();
+            }
         } catch (IllegalStateException ex) {
             // ignore state exception from making frame to image
             // as the image may be closed already.
-            return;
+            image = null;
+        } finally {
+            TraceLog.endSection();
         }
 
-        if (image != null) {
+        if (image == null) {
+            final DetectionListener listener = detectionListener;
+            if (verdict == CandidateCascade.Verdict.SKIP && listener != null) {
+                // a frame without candidates has no codes as far as the torch is concerned,
+                // which is what lets it switch on for dark, featureless frames
+                TaskExecutors.MAIN_THREAD.execute(() -> listener.detected(0));
+            }
+            traceTrack.commit(trace);
+            frame.close();
+            processLatest();
+        } else {
+            if (trace != null) trace.decodeStartNs = System.nanoTime();
+            final int cookie = TraceLog.beginAsyncSection(TraceLog.DECODE);
+            final boolean parse = parsePayloads;
+            final ReadFilter readFilter = filter;
+            final boolean audit = verdict == CandidateCascade.Verdict.AUDIT;
+            final Rect decodedRegion = region;
+            Executor readExecutor = parse || readFilter != null ? scannerLease.executor() : TaskExecutors.MAIN_THREAD;
             detector.process(image)
-                .addOnSuccessListener(this)
                 .addOnFailureListener(this)
-                .addOnCompleteListener((Task<List<Barcode>> firebaseVisionBarcodes) -> {
+                .continueWith(readExecutor, (Task<List<Barcode>> firebaseVisionBarcodes) -> {
+                    TraceLog.endAsyncSection(TraceLog.DECODE, cookie);
+                    if (trace != null) trace.decodeEndNs = System.nanoTime();
+                    return toReads(firebaseVisionBarcodes.getResult(), parse, readFilter);
+                })
+                .addOnCompleteListener((Task<Detection> detection) -> {
+                    if (detection.isSuccessful() && !isClosed()) {
+                        if (audit) {
+                            candidateCascade.audited(detection.getResult().found);
+                        }
+                        Detection result = detection.getResult();
+                        // the image is only open until the frame is closed below
+                        String evidencePath = evidence != null && !result.reads.isEmpty()
+                            ? evidence.capture(frame.image(), decodedRegion, result.bounds, frame.rotation()) : null;
+                        deliver(trace, result, evidencePath);
+                    }
+                    traceTrack.commit(trace);
                     // regardless of failure or success, close the previous frame
                     // and process the next one.
                     frame.close();
-                    processLatest();;
+                    processLatest();
                 });
         }
     }
 
-    @Override
-    public void onSuccess(List<Barcode> firebaseVisionBarcodes) {
-        for (Barcode barcode : firebaseVisionBarcodes) {
-            communicator.qrRead(barcode.getRawValue());
+    private static Detection toReads(List<Barcode> barcodes, boolean parse, ReadFilter filter) {
+        List<Read> reads = new ArrayList<>(barcodes.size());
+        Rect bounds = null;
+        for (Barcode barcode : barcodes) {
+            if (filter != null && !filter.accept(barcode.getFormat(), barcode.getRawValue())) {
+                continue;
+            }
+            reads.add(new Read(barcode.getRawValue(), parse ? PayloadParser.parse(barcode) : null));
+            Rect box = barcode.getBoundingBox();
+            if (box != null) {
+                if (bounds == null) {
+                    bounds = new Rect(box);
+                } else {
+                    bounds.union(box);
+                }
+            }
+        }
+        return new Detection(barcodes.size(), reads, bounds);
+    }
+
+    private void deliver(TraceLog.FrameEvent trace, Detection detection, String evidencePath) {
+        if (detectionListener != null) {
+            // rejected codes still count, the torch only cares whether codes can be read
+            detectionListener.detected(detection.found);
+        }
+        List<Read> reads = detection.reads;
+        if (reads.isEmpty()) {
+            return;
+        }
+
+        TraceLog.beginSection(TraceLog.DELIVER);
+        try {
+            if (trace != null) {
+                trace.resultCount = reads.size();
+                trace.deliverStartNs = System.nanoTime();
+            }
+            for (Read read : reads) {
+                communicator.qrRead(read.data, read.payload, evidencePath);
+            }
+            if (trace != null) trace.deliverEndNs = System.nanoTime();
+        } finally {
+            TraceLog.endSection();
         }
     }
 
@@ -3,14 +3,17 @@ package com.github.rmtmckenzie.qr_mobile_vision;
 import android.Manifest;
 import android.app.Activity;
 import android.app.Application;
+import android.content.Context;
 import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.core.app.ActivityCompat;
 
-import com.google.mlkit.vision.barcode.BarcodeScannerOptions;
-
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -20,6 +23,7 @@ import java.util.Map;
 import io.flutter.embedding.engine.plugins.FlutterPlugin;
 import io.flutter.embedding.engine.plugins.activity.ActivityAware;
 import io.flutter.embedding.engine.plugins.activity.ActivityPluginBinding;
+import io.flutter.plugin.common.EventChannel;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.MethodChannel.MethodCallHandler;
@@ -30,28 +34,58 @@ import io.flutter.view.TextureRegistry;
 /**
  * QrMobileVisionPlugin
  */
-public class QrMobileVisionPlugin implements FlutterPlugin, MethodCallHandler, ActivityAware, PluginRegistry.RequestPermissionsResultListener, QrReaderCallbacks, QrReader.QRReaderStartedCallback {
+public class QrMobileVisionPlugin implements FlutterPlugin, MethodCallHandler, ActivityAware, PluginRegistry.RequestPermissionsResultListener {
   private static final String TAG = "cgr.qrmv.QrMobVisPlugin";
   private static final int REQUEST_PERMISSION = 1934726;
   private MethodChannel channel;
+  private EventChannel resultChannel;
+  private final ResultStream resultStream = new ResultStream();
+  private final TraceLog traceLog = new TraceLog();
   private ActivityPluginBinding activityBinding;
 
+  private Context applicationContext;
   private TextureRegistry textures;
-  private Integer lastHeartbeatTimeout;
+  private DecodePool decodePool;
+  private MemoryGovernor memoryGovernor;
   private boolean waitingForPermissionResult;
   private boolean permissionDenied;
-  private ReadingInstance readingInstance;
+  /**
+   * Running sessions, keyed by the id of the texture their preview is drawn to
+   * (or a negative id for headless sessions).
+   */
+  private final Map<Long, ReadingInstance> readingInstances = new HashMap<>();
+  private final Map<Integer, ImageBatchDecoder> imageBatches = new HashMap<>();
+  private long nextHeadlessSessionId = -1;
 
   @Override
   public void onAttachedToEngine(@NonNull FlutterPluginBinding binding) {
+    applicationContext = binding.getApplicationContext();
     textures = binding.getTextureRegistry();
+    decodePool = new DecodePool();
+    memoryGovernor = new MemoryGovernor(applicationContext, this::memoryLevelChanged);
+    memoryGovernor.start();
     channel = new MethodChannel(binding.getBinaryMessenger(), "qr_mobile_vision");
     channel.setMethodCallHandler(this);
+    resultChannel = new EventChannel(binding.getBinaryMessenger(), "qr_mobile_vision/results");
+    resultChannel.setStreamHandler(resultStream);
   }
 
   @Override
   public void onDetachedFromEngine(@NonNull FlutterPluginBinding binding) {
     channel.setMethodCallHandler(null);
+    resultChannel.setStreamHandler(null);
+    stopAllReaders();
+    // batches have to stop resubmitting work before the pool they run on is shut down, and
+    // mustn't report to the engine that is going away
+    for (ImageBatchDecoder batch : imageBatches.values()) {
+      batch.detach();
+    }
+    imageBatches.clear();
+    decodePool.shutdown();
+    decodePool = null;
+    memoryGovernor.stop();
+    memoryGovernor = null;
+    applicationContext = null;
   }
 
   @Override
@@ -79,31 +113,80 @@ public class QrMobileVisionPlugin implements FlutterPlugin, MethodCallHandler, A
   public boolean onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
     if (requestCode == REQUEST_PERMISSION) {
       waitingForPermissionResult = false;
+      List<ReadingInstance> waiting = new ArrayList<>();
+      for (ReadingInstance instance : readingInstances.values()) {
+        if (instance.waitingForPermission) {
+          waiting.add(instance);
+        }
+      }
+
       if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
         Log.i(TAG, "Permissions request granted.");
-        stopReader();
       } else {
         Log.i(TAG, "Permissions request denied.");
         permissionDenied = true;
-        startingFailed(new QrReader.Exception(QrReader.Exception.Reason.noPermissions));
-        stopReader();
+        for (ReadingInstance instance : waiting) {
+          instance.startingFailed(new QrReader.Exception(QrReader.Exception.Reason.noPermissions));
+        }
+      }
+      for (ReadingInstance instance : waiting) {
+        stopReader(instance.sessionId);
       }
       return true;
     }
     return false;
   }
 
-  private void stopReader() {
+  private void memoryLevelChanged(MemoryGovernor.Level level) {
+    resultStream.setCapacityScale(level.bufferScale);
+    traceLog.setCapacityScale(level.bufferScale);
+    for (ReadingInstance instance : readingInstances.values()) {
+      if (instance.reader != null) {
+        instance.reader.setMemoryLevel(level);
+      }
+    }
+  }
+
+  private void stopReader(long sessionId) {
+    stopReader(sessionId, null);
+  }
+
+  /**
+   * @param reason sent to dart with the session's STOPPED camera state, or null for a normal stop.
+   */
+  private void stopReader(long sessionId, String reason) {
+    ReadingInstance readingInstance = readingInstances.remove(sessionId);
     if (readingInstance != null) {
       if (readingInstance.reader != null) {
-        readingInstance.reader.stop();
+        readingInstance.reader.stop(reason);
       }
-      if (readingInstance.textureEntry != null) {
-        readingInstance.textureEntry.release();
+      if (readingInstance.surfaceProducer != null) {
+        readingInstance.surfaceProducer.release();
       }
     }
-    readingInstance = null;
-    lastHeartbeatTimeout = null;
+  }
+
+  private void stopAllReaders() {
+    for (Long sessionId : new ArrayList<>(readingInstances.keySet())) {
+      stopReader(sessionId);
+    }
+  }
+
+  /**
+   * Returns the sessions a call applies to: the one named by its "sessionId" argument,
+   * or every running session if none is named.
+   */
+  private List<ReadingInstance> targetInstances(MethodCall methodCall) {
+    Number sessionId = methodCall.argument("sessionId");
+    if (sessionId == null) {
+      return new ArrayList<>(readingInstances.values());
+    }
+    List<ReadingInstance> targets = new ArrayList<>(1);
+    ReadingInstance instance = readingInstances.get(sessionId.longValue());
+    if (instance != null) {
+      targets.add(instance);
+    }
+    return targets;
   }
 
   @Override
@@ -113,41 +196,92 @@ public class QrMobileVisionPlugin implements FlutterPlugin, MethodCallHandler, A
         if (permissionDenied) {
           permissionDenied = false;
           result.error("QRREADER_ERROR", "noPermission", null);
-        } else if (readingInstance != null) {
-          result.error("ALREADY_RUNNING", "Start cannot be called when already running", "");
         } else if (activityBinding == null) {
           result.error("DETACHED", "Cannot start when not attached to activity", null);
         } else {
-          lastHeartbeatTimeout = methodCall.argument("heartbeatTimeout");
+          Integer heartbeatTimeout = methodCall.argument("heartbeatTimeout");
           Integer targetWidth = methodCall.argument("targetWidth");
           Integer targetHeight = methodCall.argument("targetHeight");
           Integer cameraDirection = methodCall.argument("cameraDirection");
+          String lensPreference = methodCall.argument("lensPreference");
           List<String> formatStrings = methodCall.argument("formats");
+          boolean headless = Boolean.TRUE.equals(methodCall.argument("headless"));
+          boolean autoTorch = Boolean.TRUE.equals(methodCall.argument("autoTorch"));
+          boolean parsePayloads = Boolean.TRUE.equals(methodCall.argument("parsePayloads"));
 
           if (targetWidth == null || targetHeight == null) {
             result.error("INVALID_ARGUMENT", "Missing a required argument", "Expecting targetWidth, targetHeight, and optionally heartbeatTimeout");
             break;
           }
 
-          BarcodeScannerOptions options = BarcodeFormats.optionsFromStringList(formatStrings);
+          ReadFilter filter;
+          try {
+            filter = ReadFilter.compile(methodCall.<Map<?, ?>>argument("filter"));
+          } catch (IllegalArgumentException e) {
+            result.error("INVALID_FILTER", e.getMessage(), null);
+            break;
+          }
+
+          Heartbeat.Source livenessSource = Heartbeat.Source.fromString(methodCall.argument("livenessSource"));
+          if (headless && livenessSource == Heartbeat.Source.ENGINE && heartbeatTimeout != null && heartbeatTimeout > 0) {
+            // only the preview texture arms the watchdog, which headless sessions don't have
+            result.error("INVALID_ARGUMENT", "Engine liveness needs a preview texture, which headless sessions don't have",
+              "Use heartbeat liveness or no heartbeatTimeout for headless sessions");
+            break;
+          }
+
+          EvidenceCapture evidence;
+          try {
+            evidence = EvidenceCapture.fromMap(methodCall.<Map<?, ?>>argument("evidence"));
+          } catch (IllegalArgumentException e) {
+            result.error("INVALID_ARGUMENT", e.getMessage(), null);
+            break;
+          }
 
-          TextureRegistry.SurfaceTextureEntry textureEntry = textures.createSurfaceTexture();
-          QrReader reader = new QrReader(targetWidth, targetHeight, activityBinding.getActivity(), options,
-            this, this, textureEntry.surfaceTexture());
+          ReadingInstance readingInstance;
+          if (headless) {
+            readingInstance = new ReadingInstance(nextHeadlessSessionId--, null, result);
+          } else {
+            // the texture registry can only be used from the main thread, so the texture is set
+            // up here before the camera and scanner start up in the background
+            long textureStart = SystemClock.elapsedRealtime();
+            TextureRegistry.SurfaceProducer surfaceProducer = textures.createSurfaceProducer();
+            readingInstance = new ReadingInstance(surfaceProducer.id(), surfaceProducer, result);
+            readingInstance.textureSetupMs = SystemClock.elapsedRealtime() - textureStart;
+          }
+          readingInstance.reader = new QrReader(targetWidth, targetHeight, activityBinding.getActivity(),
+            decodePool.acquire(formatStrings), readingInstance, readingInstance,
+            readingInstance.surfaceProducer, traceLog.track(readingInstance.sessionId));
+          readingInstance.reader.qrCamera.setAutoTorch(autoTorch);
+          readingInstance.reader.setParsePayloads(parsePayloads);
+          readingInstance.reader.setFilter(filter);
+          readingInstance.reader.setEvidenceCapture(evidence);
+          readingInstance.reader.setCandidateCascade(CandidateCascade.fromMap(methodCall.<Map<?, ?>>argument("candidateCascade")));
+          readingInstance.reader.setCaptureProfile(CaptureProfile.fromMap(methodCall.<Map<?, ?>>argument("captureProfile")));
+          readingInstance.reader.setMemoryLevel(memoryGovernor.level());
+          readingInstances.put(readingInstance.sessionId, readingInstance);
 
-          readingInstance = new ReadingInstance(reader, textureEntry, result);
           try {
-            reader.start(
-              lastHeartbeatTimeout == null ? 0 : lastHeartbeatTimeout,
-              cameraDirection == null ? 0 : cameraDirection
+            readingInstance.reader.start(
+              heartbeatTimeout == null ? 0 : heartbeatTimeout,
+              livenessSource,
+              cameraDirection == null ? 0 : cameraDirection,
+              LensSelector.Preference.fromString(lensPreference)
             );
           } catch (IOException e) {
             e.printStackTrace();
+            stopReader(readingInstance.sessionId);
             result.error("IOException", "Error starting camera because of IOException: " + e.getLocalizedMessage(), null);
           } catch (QrReader.Exception e) {
             e.printStackTrace();
+            stopReader(readingInstance.sessionId);
             result.error(e.reason().name(), "Error starting camera for reason: " + e.reason().name(), null);
           } catch (NoPermissionException e) {
+            readingInstance.waitingForPermission = true;
+            if (waitingForPermissionResult) {
+              // a request is already showing, its result applies to this session too
+              break;
+            }
             waitingForPermissionResult = true;
             ActivityCompat.requestPermissions(
               activityBinding.getActivity(),
@@ -159,22 +293,83 @@ public class QrMobileVisionPlugin implements FlutterPlugin, MethodCallHandler, A
         break;
       }
       case "stop": {
-        if (readingInstance != null && !waitingForPermissionResult) {
-          stopReader();
+        for (ReadingInstance instance : targetInstances(methodCall)) {
+          if (!instance.waitingForPermission) {
+            stopReader(instance.sessionId);
+          }
         }
         result.success(null);
         break;
       }
       case "toggleFlash": {
-        if (readingInstance != null && !waitingForPermissionResult) {
-          readingInstance.reader.toggleFlash();
+        for (ReadingInstance instance : targetInstances(methodCall)) {
+          if (!instance.waitingForPermission) {
+            instance.reader.toggleFlash();
+          }
         }
         result.success(null);
         break;
       }
       case "heartbeat": {
-        if (readingInstance != null) {
-          readingInstance.reader.heartBeat();
+        for (ReadingInstance instance : targetInstances(methodCall)) {
+          instance.reader.heartBeat();
+        }
+        result.success(null);
+        break;
+      }
+      case "requestResults": {
+        Number n = methodCall.argument("n");
+        if (n != null) {
+          resultStream.request(n.longValue());
+        }
+        result.success(null);
+        break;
+      }
+      case "resultStreamStats": {
+        result.success(resultStream.stats());
+        break;
+      }
+      case "filterStats": {
+        Map<String, Object> stats = new HashMap<>();
+        for (ReadingInstance instance : targetInstances(methodCall)) {
+          ReadFilter filter = instance.reader == null ? null : instance.reader.getFilter();
+          if (filter != null) {
+            stats.put(String.valueOf(instance.sessionId), filter.stats());
+          }
+        }
+        result.success(stats);
+        break;
+      }
+      case "cascadeStats": {
+        Map<String, Object> stats = new HashMap<>();
+        for (ReadingInstance instance : targetInstances(methodCall)) {
+          CandidateCascade cascade = instance.reader == null ? null : instance.reader.getCandidateCascade();
+          if (cascade != null) {
+            stats.put(String.valueOf(instance.sessionId), cascade.stats());
+          }
+        }
+        result.success(stats);
+        break;
+      }
+      case "enableTraceLog": {
+        Integer capacity = methodCall.argument("capacity");
+        traceLog.setCapacity(capacity == null ? 0 : capacity);
+        result.success(null);
+        break;
+      }
+      case "dumpTraceLog": {
+        dumpTraceLog(methodCall.<String>argument("path"), result);
+        break;
+      }
+      case "decodeImages": {
+        decodeImages(methodCall, result);
+        break;
+      }
+      case "cancelDecode": {
+        Integer batchId = methodCall.argument("batchId");
+        ImageBatchDecoder batch = batchId == null ? null : imageBatches.get(batchId);
+        if (batch != null) {
+          batch.cancel();
         }
         result.success(null);
         break;
@@ -184,19 +379,55 @@ public class QrMobileVisionPlugin implements FlutterPlugin, MethodCallHandler, A
     }
   }
 
-  @Override
-  public void qrRead(String data) {
-    channel.invokeMethod("qrRead", data);
+  private void dumpTraceLog(String path, final Result result) {
+    if (applicationContext == null) {
+      result.error("DETACHED", "Cannot dump trace log when not attached to engine", null);
+      return;
+    }
+    final File file = path != null ? new File(path)
+      : new File(applicationContext.getCacheDir(), "qrmv-trace-" + System.currentTimeMillis() + ".json");
+    final Handler mainHandler = new Handler(Looper.getMainLooper());
+    decodePool.executor().execute(() -> {
+      try {
+        traceLog.dump(file);
+        mainHandler.post(() -> result.success(file.getAbsolutePath()));
+      } catch (final IOException e) {
+        Log.w(TAG, "Failed to write trace log", e);
+        mainHandler.post(() -> result.error("IOException", "Error writing trace log: " + e.getLocalizedMessage(), null));
+      }
+    });
   }
 
-  @Override
-  public void started() {
-    Map<String, Object> response = new HashMap<>();
-    response.put("surfaceWidth", readingInstance.reader.qrCamera.getWidth());
-    response.put("surfaceHeight", readingInstance.reader.qrCamera.getHeight());
-    response.put("surfaceOrientation", readingInstance.reader.qrCamera.getOrientation());
-    response.put("textureId", readingInstance.textureEntry.id());
-    readingInstance.startResult.success(response);
+  private void decodeImages(MethodCall methodCall, final Result result) {
+    Integer batchId = methodCall.argument("batchId");
+    List<String> paths = methodCall.argument("paths");
+    List<byte[]> images = methodCall.argument("images");
+    List<String> formatStrings = methodCall.argument("formats");
+    Integer parallelism = methodCall.argument("parallelism");
+
+    if (batchId == null) {
+      result.error("INVALID_ARGUMENT", "Missing a required argument", "Expecting batchId, and optionally paths, images, formats and parallelism");
+      return;
+    } else if (imageBatches.containsKey(batchId)) {
+      result.error("ALREADY_RUNNING", "A batch with id " + batchId + " is already being decoded", null);
+      return;
+    }
+
+    ImageBatchDecoder batch = new ImageBatchDecoder(batchId, paths, images, decodePool.acquire(formatStrings),
+      decodePool.executor(), new ImageBatchDecoder.Listener() {
+      @Override
+      public void imageDecoded(int batchId, Map<String, Object> imageResult) {
+        channel.invokeMethod("imageDecoded", imageResult);
+      }
+
+      @Override
+      public void batchFinished(int batchId, Map<String, Object> summary) {
+        imageBatches.remove(batchId);
+        result.success(summary);
+      }
+    });
+    imageBatches.put(batchId, batch);
+    batch.start(parallelism == null ? Runtime.getRuntime().availableProcessors() : parallelism);
   }
 
   private List<String> stackTraceAsString(StackTraceElement[] stackTrace) {
@@ -211,28 +442,87 @@ public class QrMobileVisionPlugin implements FlutterPlugin, MethodCallHandler, A
     return stackTraceStrings;
   }
 
-  @Override
-  public void startingFailed(Throwable t) {
-    Log.w(TAG, "Starting QR Mobile Vision failed", t);
-    List<String> stackTraceStrings = stackTraceAsString(t.getStackTrace());
+  private class ReadingInstance implements QrReaderCallbacks, QrReader.QRReaderStartedCallback {
+    final long sessionId;
+    final TextureRegistry.SurfaceProducer surfaceProducer;
+    final Result startResult;
+    QrReader reader;
+    boolean waitingForPermission;
+    long textureSetupMs;
 
-    if (t instanceof QrReader.Exception) {
-      QrReader.Exception qrException = (QrReader.Exception) t;
-      readingInstance.startResult.error("QRREADER_ERROR", qrException.reason().name(), stackTraceStrings);
-    } else {
-      readingInstance.startResult.error("UNKNOWN_ERROR", t.getMessage(), stackTraceStrings);
+    private ReadingInstance(long sessionId, TextureRegistry.SurfaceProducer surfaceProducer, Result startResult) {
+      this.sessionId = sessionId;
+      this.surfaceProducer = surfaceProducer;
+      this.startResult = startResult;
     }
-  }
 
-  private static class ReadingInstance {
-    final QrReader reader;
-    final TextureRegistry.SurfaceTextureEntry textureEntry;
-    final Result startResult;
+    @Override
+    public void qrRead(String data, Map<String, Object> payload, String evidencePath) {
+      Map<String, Object> read = new HashMap<>();
+      read.put("sessionId", sessionId);
+      read.put("data", data);
+      if (payload != null) {
+        read.put("payload", payload);
+      }
+      if (evidencePath != null) {
+        read.put("evidencePath", evidencePath);
+      }
+      TraceLog.beginSection(TraceLog.SEND);
+      try {
+        if (!resultStream.offer(read)) {
+          channel.invokeMethod("qrRead", read);
+        }
+      } finally {
+        TraceLog.endSection();
+      }
+    }
 
-    private ReadingInstance(QrReader reader, TextureRegistry.SurfaceTextureEntry textureEntry, Result startResult) {
-      this.reader = reader;
-      this.textureEntry = textureEntry;
-      this.startResult = startResult;
+    @Override
+    public void cameraStateChanged(Map<String, Object> event) {
+      event.put("sessionId", sessionId);
+      channel.invokeMethod("cameraState", event);
+    }
+
+    @Override
+    public void livenessExpired() {
+      Log.i(TAG, "Session " + sessionId + " was not kept alive, stopping it");
+      stopReader(sessionId, "timed out");
+    }
+
+    @Override
+    public void cameraUnavailable() {
+      stopReader(sessionId);
+    }
+
+    @Override
+    public void started(Map<String, Object> timings) {
+      Map<String, Object> startupTimings = new HashMap<>(timings);
+      if (surfaceProducer != null) {
+        startupTimings.put("textureMs", textureSetupMs);
+      }
+
+      Map<String, Object> response = new HashMap<>();
+      response.put("startupTimings", startupTimings);
+      response.put("surfaceWidth", reader.qrCamera.getWidth());
+      response.put("surfaceHeight", reader.qrCamera.getHeight());
+      response.put("surfaceOrientation", reader.qrCamera.getOrientation());
+      response.put("textureId", surfaceProducer == null ? null : surfaceProducer.id());
+      response.put("sessionId", sessionId);
+      startResult.success(response);
+    }
+
+    @Override
+    public void startingFailed(Throwable t) {
+      Log.w(TAG, "Starting QR Mobile Vision failed", t);
+      List<String> stackTraceStrings = stackTraceAsString(t.getStackTrace());
+
+      if (t instanceof QrReader.Exception) {
+        QrReader.Exception qrException = (QrReader.Exception) t;
+        startResult.error("QRREADER_ERROR", qrException.reason().name(), stackTraceStrings);
+      } else {
+        startResult.error("UNKNOWN_ERROR", t.getMessage(), stackTraceStrings);
+      }
+      stopReader(sessionId);
     }
   }
 }
@@ -4,29 +4,35 @@ import android.Manifest;
 import android.app.Activity;
 import android.content.Context;
 import android.content.pm.PackageManager;
-import android.graphics.SurfaceTexture;
-
-import com.google.mlkit.vision.barcode.BarcodeScannerOptions;
 
 import java.io.IOException;
+import java.util.Map;
+
+import io.flutter.view.TextureRegistry;
 
 class QrReader {
     private static final String TAG = "cgr.qrmv.QrReader";
     final QrCamera qrCamera;
+    private final QrDetector detector;
     private final Activity context;
     private final QRReaderStartedCallback startedCallback;
+    private final QrReaderCallbacks communicator;
     private Heartbeat heartbeat;
+    private StartupPhases startup;
 
-    QrReader(int width, int height, Activity context, BarcodeScannerOptions options,
+    QrReader(int width, int height, Activity context, DecodePool.Lease scannerLease,
              final QRReaderStartedCallback startedCallback, final QrReaderCallbacks communicator,
-             final SurfaceTexture texture) {
+             final TextureRegistry.SurfaceProducer surfaceProducer, final TraceLog.Track traceTrack) {
         this.context = context;
         this.startedCallback = startedCallback;
+        this.communicator = communicator;
 
-        qrCamera = new QrCamera(width, height, texture, context, new QrDetector(communicator, options));
+        detector = new QrDetector(communicator, scannerLease, traceTrack);
+        qrCamera = new QrCamera(width, height, surfaceProducer, context, detector, communicator, traceTrack);
     }
 
-    void start(final int heartBeatTimeout, final int cameraDirection) throws IOException, NoPermissionException, Exception {
+    void start(final int heartBeatTimeout, final Heartbeat.Source livenessSource, final int cameraDirection,
+               final LensSelector.Preference lensPreference) throws IOException, NoPermissionException, Exception {
         if (!hasCameraHardware(context)) {
             throw new Exception(Exception.Reason.noHardware);
         }
@@ -34,37 +40,109 @@ class QrReader {
         if (!checkCameraPermission(context)) {
             throw new NoPermissionException();
         } else {
-            continueStarting(heartBeatTimeout, cameraDirection);
+            continueStarting(heartBeatTimeout, livenessSource, cameraDirection, lensPreference);
         }
     }
 
-    private void continueStarting(int heartBeatTimeout, final int cameraDirection) throws IOException {
+    private void continueStarting(int heartBeatTimeout, Heartbeat.Source livenessSource, final int cameraDirection,
+                                  final LensSelector.Preference lensPreference) throws IOException {
         try {
+            if (heartbeat != null) {
+                heartbeat.stop();
+                heartbeat = null;
+            }
+            qrCamera.setLivenessListener(null);
             if (heartBeatTimeout > 0) {
-                if (heartbeat != null) {
-                    heartbeat.stop();
-                }
-                heartbeat = new Heartbeat(heartBeatTimeout, new Runnable() {
+                // driven by the engine, the watchdog only runs while the preview surface is gone.
+                // expiry goes through the plugin so the session is let go of, not just stopped
+                final boolean engine = livenessSource == Heartbeat.Source.ENGINE;
+                final Heartbeat watchdog = new Heartbeat(heartBeatTimeout, communicator::livenessExpired, !engine);
+                heartbeat = watchdog;
+                qrCamera.setLivenessListener(new QrCamera.LivenessListener() {
                     @Override
-                    public void run() {
-                        stop();
+                    public void frameArrived() {
+                        watchdog.check();
+                    }
+
+                    @Override
+                    public void previewSurfaceChanged(boolean available) {
+                        if (!engine) {
+                            return;
+                        }
+                        if (available) {
+                            watchdog.disarm();
+                        } else {
+                            watchdog.arm();
+                        }
                     }
                 });
             }
 
-            qrCamera.start(cameraDirection);
-            startedCallback.started();
+            // the camera and the scanner start up concurrently, the session counts as started
+            // once both are ready
+            startup = new StartupPhases(startedCallback, StartupPhases.CAMERA, StartupPhases.SCANNER);
+            detector.warmUp(() -> startup.done(StartupPhases.SCANNER));
+            qrCamera.start(cameraDirection, lensPreference, startup);
         } catch (Throwable t) {
-            startedCallback.startingFailed(t);
+            if (startup != null) {
+                startup.fail(t);
+            } else {
+                startedCallback.startingFailed(t);
+            }
         }
     }
 
     void stop() {
+        stop(null);
+    }
+
+    /**
+     * @param reason passed on with the camera's STOPPED state, or null for a normal stop.
+     */
+    void stop(String reason) {
         if (heartbeat != null) {
             heartbeat.stop();
         }
 
-        qrCamera.stop();
+        qrCamera.stop(reason);
+        detector.close();
+        if (startup != null) {
+            startup.fail(new Exception(Exception.Reason.stopped));
+        }
+    }
+
+    void setParsePayloads(boolean parsePayloads) {
+        detector.setParsePayloads(parsePayloads);
+    }
+
+    void setCaptureProfile(CaptureProfile captureProfile) {
+        qrCamera.setCaptureProfile(captureProfile);
+        detector.setMaxFramesInFlight(captureProfile.framesInFlight);
+    }
+
+    void setFilter(ReadFilter filter) {
+        detector.setFilter(filter);
+    }
+
+    ReadFilter getFilter() {
+        return detector.getFilter();
+    }
+
+    void setCandidateCascade(CandidateCascade cascade) {
+        detector.setCandidateCascade(cascade);
+    }
+
+    CandidateCascade getCandidateCascade() {
+        return detector.getCandidateCascade();
+    }
+
+    void setEvidenceCapture(EvidenceCapture evidence) {
+        detector.setEvidenceCapture(evidence);
+    }
+
+    void setMemoryLevel(MemoryGovernor.Level level) {
+        detector.setMemoryLevel(level);
+        qrCamera.setMemoryLevel(level);
     }
 
     void toggleFlash() {
@@ -89,7 +167,10 @@ class QrReader {
     }
 
     interface QRReaderStartedCallback {
-        void started();
+        /**
+         * @param timings how long after the start each startup phase finished, in milliseconds.
+         */
+        void started(Map<String, Object> timings);
 
         void startingFailed(Throwable t);
     }
@@ -109,7 +190,9 @@ class QrReader {
         enum Reason {
             noHardware,
             noPermissions,
-            noBackCamera
+            noBackCamera,
+            cameraUnavailable,
+            stopped
         }
     }
 }
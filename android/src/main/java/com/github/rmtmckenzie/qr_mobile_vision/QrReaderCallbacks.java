@@ -1,5 +1,32 @@
 package com.github.rmtmckenzie.qr_mobile_vision;
 
+import java.util.Map;
+
 public interface QrReaderCallbacks {
-    void qrRead(String data);
+    /**
+     * @param payload      the barcode's structured fields if payload parsing is on, otherwise null.
+     * @param evidencePath where a JPEG of the frame the barcode was read from is being saved, if
+     *                     evidence capture is on and the frame wasn't dropped, otherwise null.
+     */
+    void qrRead(String data, Map<String, Object> payload, String evidencePath);
+
+    /**
+     * Called whenever the camera moves between {@link QrCamera.State}s. The event holds the new
+     * state and reason, the current recovery attempt, and recovery statistics - including how
+     * long the camera was down for when it is running again after a recovery.
+     */
+    void cameraStateChanged(Map<String, Object> event);
+
+    /**
+     * The session wasn't kept alive within its heartbeat timeout. Called on the main thread;
+     * the receiver is expected to stop the session and let go of it.
+     */
+    void livenessExpired();
+
+    /**
+     * The camera was given up on after an error retrying can't fix, or too many failed attempts
+     * to recover it, and has stopped. Called on the main thread; the receiver is expected to let
+     * go of the session.
+     */
+    void cameraUnavailable();
 }
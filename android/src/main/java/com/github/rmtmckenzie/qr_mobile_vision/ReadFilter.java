@@ -0,0 +1,153 @@
+package com.github.rmtmckenzie.qr_mobile_vision;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Rules a read has to pass before it is sent to dart, compiled once when a session starts.
+ * <p>
+ * Every rule given must pass: the barcode's format must be one of {@code formats}, its value
+ * must fully match {@code pattern}, be between {@code minLength} and {@code maxLength}
+ * characters long, start with one of {@code prefixes} and, if {@code gs1Ais} is given, be a GS1
+ * element string holding all of those application identifiers. Reads that fail are counted by
+ * the first rule they failed.
+ */
+class ReadFilter {
+  private final int formats;
+  private final Pattern pattern;
+  private final int minLength;
+  private final int maxLength;
+  private final List<String> prefixes;
+  private final List<String> gs1Ais;
+
+  private final AtomicLong accepted = new AtomicLong();
+  private final AtomicLong rejectedFormat = new AtomicLong();
+  private final AtomicLong rejectedLength = new AtomicLong();
+  private final AtomicLong rejectedPrefix = new AtomicLong();
+  private final AtomicLong rejectedPattern = new AtomicLong();
+  private final AtomicLong rejectedGs1 = new AtomicLong();
+
+  private ReadFilter(int formats, Pattern pattern, int minLength, int maxLength, List<String> prefixes,
+                     List<String> gs1Ais) {
+    this.formats = formats;
+    this.pattern = pattern;
+    this.minLength = minLength;
+    this.maxLength = maxLength;
+    this.prefixes = prefixes;
+    this.gs1Ais = gs1Ais;
+  }
+
+  /**
+   * @param spec the "filter" argument of start; may be null for no filter.
+   * @return the compiled filter, or null if the spec has no rules.
+   * @throws IllegalArgumentException if a rule is malformed, e.g. an invalid pattern.
+   */
+  static ReadFilter compile(Map<?, ?> spec) {
+    if (spec == null || spec.isEmpty()) {
+      return null;
+    }
+
+    List<String> formatNames = stringList(spec, "formats");
+    int formats = formatNames == null ? 0 : BarcodeFormats.intFromStringList(formatNames);
+    if (formats == 0 && formatNames != null && !formatNames.isEmpty()
+      && !formatNames.contains(BarcodeFormats.ALL_FORMATS.name())) {
+      throw new IllegalArgumentException("No known barcode format in " + formatNames);
+    }
+
+    Pattern pattern = null;
+    Object patternArgument = spec.get("pattern");
+    if (patternArgument != null) {
+      try {
+        pattern = Pattern.compile(patternArgument.toString());
+      } catch (PatternSyntaxException e) {
+        throw new IllegalArgumentException("Invalid pattern: " + e.getMessage(), e);
+      }
+    }
+
+    int minLength = intArgument(spec, "minLength", 0);
+    int maxLength = intArgument(spec, "maxLength", Integer.MAX_VALUE);
+    if (minLength > maxLength) {
+      throw new IllegalArgumentException("minLength " + minLength + " is greater than maxLength " + maxLength);
+    }
+
+    return new ReadFilter(formats, pattern, minLength, maxLength, stringList(spec, "prefixes"),
+      stringList(spec, "gs1Ais"));
+  }
+
+  boolean accept(int format, String value) {
+    if (formats != 0 && (formats & format) == 0) {
+      rejectedFormat.incrementAndGet();
+      return false;
+    }
+    if (value == null) {
+      value = "";
+    }
+    if (value.length() < minLength || value.length() > maxLength) {
+      rejectedLength.incrementAndGet();
+      return false;
+    }
+    if (prefixes != null && !hasPrefix(value)) {
+      rejectedPrefix.incrementAndGet();
+      return false;
+    }
+    if (pattern != null && !pattern.matcher(value).matches()) {
+      rejectedPattern.incrementAndGet();
+      return false;
+    }
+    if (gs1Ais != null) {
+      Map<String, String> elements = Gs1Parser.isGs1(format, value) ? Gs1Parser.parse(value) : null;
+      if (elements == null || !elements.keySet().containsAll(gs1Ais)) {
+        rejectedGs1.incrementAndGet();
+        return false;
+      }
+    }
+    accepted.incrementAndGet();
+    return true;
+  }
+
+  Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("accepted", accepted.get());
+    stats.put("rejectedFormat", rejectedFormat.get());
+    stats.put("rejectedLength", rejectedLength.get());
+    stats.put("rejectedPrefix", rejectedPrefix.get());
+    stats.put("rejectedPattern", rejectedPattern.get());
+    stats.put("rejectedGs1", rejectedGs1.get());
+    stats.put("rejected", rejectedFormat.get() + rejectedLength.get() + rejectedPrefix.get()
+      + rejectedPattern.get() + rejectedGs1.get());
+    return stats;
+  }
+
+  private boolean hasPrefix(String value) {
+    for (String prefix : prefixes) {
+      if (value.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int intArgument(Map<?, ?> spec, String key, int defaultValue) {
+    Object value = spec.get(key);
+    return value instanceof Number ? ((Number) value).intValue() : defaultValue;
+  }
+
+  private static List<String> stringList(Map<?, ?> spec, String key) {
+    Object value = spec.get(key);
+    if (!(value instanceof List)) {
+      return null;
+    }
+    List<String> strings = new ArrayList<>();
+    for (Object item : (List<?>) value) {
+      if (item != null) {
+        strings.add(item.toString());
+      }
+    }
+    return strings;
+  }
+}
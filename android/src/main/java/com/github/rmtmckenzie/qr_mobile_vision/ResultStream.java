@@ -0,0 +1,158 @@
+package com.github.rmtmckenzie.qr_mobile_vision;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.flutter.plugin.common.EventChannel;
+
+/**
+ * Demand-driven delivery of reads over an EventChannel.
+ * <p>
+ * The dart side grants credits with {@link #request(long)} and one read is sent per credit.
+ * Reads that arrive with no credits left wait in a bounded buffer; when it is full the
+ * overflow policy decides what to give up. Everything here runs on the main thread.
+ */
+class ResultStream implements EventChannel.StreamHandler {
+  private static final int DEFAULT_CAPACITY = 16;
+
+  enum OverflowPolicy {
+    /**
+     * Drop the oldest buffered read to make room for the new one.
+     */
+    DROP_OLDEST,
+    /**
+     * Fold a read into an identical buffered one (same session and value), counting it rather
+     * than buffering it again. Falls back to dropping the oldest read when the buffer is full.
+     */
+    COALESCE;
+
+    static OverflowPolicy fromString(String name) {
+      return COALESCE.name().equals(name) ? COALESCE : DROP_OLDEST;
+    }
+  }
+
+  private EventChannel.EventSink sink;
+  private ArrayDeque<Map<String, Object>> buffer = new ArrayDeque<>(DEFAULT_CAPACITY);
+  private int capacity = DEFAULT_CAPACITY;
+  private float capacityScale = 1f;
+  private OverflowPolicy policy = OverflowPolicy.DROP_OLDEST;
+  private long credits;
+  private long dropped;
+  private long coalesced;
+  private long delivered;
+
+  @Override
+  public void onListen(Object arguments, EventChannel.EventSink events) {
+    capacity = DEFAULT_CAPACITY;
+    policy = OverflowPolicy.DROP_OLDEST;
+    if (arguments instanceof Map) {
+      Map<?, ?> options = (Map<?, ?>) arguments;
+      Object capacityArgument = options.get("capacity");
+      if (capacityArgument instanceof Number) {
+        capacity = Math.max(1, ((Number) capacityArgument).intValue());
+      }
+      Object policyArgument = options.get("overflowPolicy");
+      if (policyArgument instanceof String) {
+        policy = OverflowPolicy.fromString((String) policyArgument);
+      }
+    }
+    buffer = new ArrayDeque<>(capacity);
+    credits = 0;
+    dropped = 0;
+    coalesced = 0;
+    delivered = 0;
+    sink = events;
+  }
+
+  @Override
+  public void onCancel(Object arguments) {
+    sink = null;
+    buffer.clear();
+    credits = 0;
+  }
+
+  void request(long n) {
+    if (n > 0) {
+      credits += n;
+      drain();
+    }
+  }
+
+  /**
+   * Queues a read for delivery.
+   *
+   * @return false if nothing is listening, in which case the read should be delivered some
+   * other way.
+   */
+  boolean offer(Map<String, Object> read) {
+    if (sink == null) {
+      return false;
+    }
+
+    if (policy == OverflowPolicy.COALESCE) {
+      for (Map<String, Object> buffered : buffer) {
+        if (sameRead(buffered, read)) {
+          Object count = buffered.get("count");
+          buffered.put("count", count == null ? 2 : (Integer) count + 1);
+          coalesced++;
+          return true;
+        }
+      }
+    }
+
+    if (buffer.size() >= effectiveCapacity()) {
+      buffer.pollFirst();
+      dropped++;
+    }
+    buffer.addLast(read);
+    drain();
+    return true;
+  }
+
+  /**
+   * Shrinks (or restores) the buffer to {@code scale} of the capacity asked for by the listener,
+   * dropping the oldest buffered reads that no longer fit. At least one read is always kept.
+   */
+  void setCapacityScale(float scale) {
+    capacityScale = scale;
+    int limit = effectiveCapacity();
+    while (buffer.size() > limit) {
+      buffer.pollFirst();
+      dropped++;
+    }
+  }
+
+  private int effectiveCapacity() {
+    return Math.max(1, (int) (capacity * capacityScale));
+  }
+
+  Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("listening", sink != null);
+    stats.put("buffered", buffer.size());
+    stats.put("capacity", capacity);
+    stats.put("effectiveCapacity", effectiveCapacity());
+    stats.put("credits", credits);
+    stats.put("delivered", delivered);
+    stats.put("dropped", dropped);
+    stats.put("coalesced", coalesced);
+    return stats;
+  }
+
+  private void drain() {
+    while (sink != null && credits > 0 && !buffer.isEmpty()) {
+      Map<String, Object> read = buffer.pollFirst();
+      read.put("dropped", dropped);
+      credits--;
+      delivered++;
+      sink.success(read);
+    }
+  }
+
+  private static boolean sameRead(Map<String, Object> a, Map<String, Object> b) {
+    Object aData = a.get("data");
+    return a.get("sessionId").equals(b.get("sessionId"))
+      && (aData == null ? b.get("data") == null : aData.equals(b.get("data")));
+  }
+}
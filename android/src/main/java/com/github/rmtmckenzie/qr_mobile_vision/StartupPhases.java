@@ -0,0 +1,70 @@
+package com.github.rmtmckenzie.qr_mobile_vision;
+
+import android.os.SystemClock;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tracks the phases of starting a session, which run concurrently, and reports the session as
+ * started once every required phase is done - along with how long after the start each phase
+ * finished. Only used from the main thread.
+ */
+class StartupPhases {
+  /**
+   * Camera enumeration, lens ranking and reading the chosen camera's characteristics.
+   */
+  static final String CAMERA_SETUP = "cameraSetup";
+  static final String CAMERA_OPEN = "cameraOpen";
+  /**
+   * The capture session is running, after recovering the camera if it was lost during startup.
+   */
+  static final String CAMERA = "camera";
+  /**
+   * The scanner has finished a first, dummy decode, so its model is loaded.
+   */
+  static final String SCANNER = "scanner";
+
+  private final QrReader.QRReaderStartedCallback callback;
+  private final long startedAt = SystemClock.elapsedRealtime();
+  private final Map<String, Object> timings = new LinkedHashMap<>();
+  private final Set<String> pending;
+  private boolean finished;
+
+  StartupPhases(QrReader.QRReaderStartedCallback callback, String... required) {
+    this.callback = callback;
+    this.pending = new HashSet<>(Arrays.asList(required));
+  }
+
+  boolean isFinished() {
+    return finished;
+  }
+
+  /**
+   * Records that {@code phase} is done, reporting the session as started if it was the last
+   * required phase. Phases are only recorded the first time.
+   */
+  void done(String phase) {
+    if (finished || timings.containsKey(phase + "Ms")) {
+      return;
+    }
+    timings.put(phase + "Ms", SystemClock.elapsedRealtime() - startedAt);
+    pending.remove(phase);
+    if (pending.isEmpty()) {
+      finished = true;
+      timings.put("totalMs", SystemClock.elapsedRealtime() - startedAt);
+      callback.started(timings);
+    }
+  }
+
+  void fail(Throwable t) {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    callback.startingFailed(t);
+  }
+}
@@ -0,0 +1,169 @@
+package com.github.rmtmckenzie.qr_mobile_vision;
+
+import android.media.Image;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns the torch on and off automatically based on scene brightness and whether reads are
+ * succeeding.
+ * <p>
+ * The torch is only turned on once the scene is dark (by mean luma of the Y plane, or because
+ * auto-exposure has run out of exposure time and gain) and several frames in a row have failed
+ * to read. With the torch on, auto-exposure brings the frame back to its target brightness, so
+ * luma no longer says anything about the room; instead the exposure (time x sensitivity) is
+ * recorded once the torch has settled, and the torch is turned off when auto-exposure needs
+ * well under that, i.e. the room got brighter. Minimum on and off times stop it from
+ * flickering around the thresholds.
+ */
+class TorchController implements QrDetector.DetectionListener {
+  private static final String TAG = "cgr.qrmv.Torch";
+
+  /**
+   * Mean luma (0-255) under which a scene is considered dark.
+   */
+  private static final float DARK_LUMA = 55;
+  /**
+   * Ambient mean luma over which the torch is no longer needed. Well above {@link #DARK_LUMA}
+   * so the torch doesn't flap around one threshold. Only used on cameras that don't report
+   * their exposure.
+   */
+  private static final float BRIGHT_LUMA = 95;
+  /**
+   * With the torch on, an exposure under this fraction of the one it settled at means the
+   * room has become bright enough without it.
+   */
+  private static final float BRIGHTER_EXPOSURE_RATIO = 0.35f;
+  private static final int FAILED_READS_BEFORE_ON = 8;
+  private static final int FRAMES_TO_SETTLE = 15;
+  private static final long MIN_ON_MS = 3000;
+  private static final long MIN_OFF_MS = 1500;
+  /**
+   * Auto-exposure at or beyond both of these means it can't brighten the scene any further
+   * without blurring moving codes, so more light is needed.
+   */
+  private static final long LONG_EXPOSURE_NS = 33_000_000L;
+  private static final int HIGH_SENSITIVITY = 800;
+  /**
+   * Only every SAMPLE_STEP-th pixel of every SAMPLE_STEP-th row is read when measuring luma.
+   */
+  private static final int SAMPLE_STEP = 16;
+
+  interface Torch {
+    void setTorch(boolean on);
+  }
+
+  private final Torch torch;
+  private boolean on;
+  private long lastSwitch;
+  private float luma = -1;
+  private boolean exposureMaxedOut;
+  private int failedReads;
+  private int framesSinceSwitch;
+  private float lumaBeforeOn;
+  private float torchGain;
+  /**
+   * Smoothed exposure time (ns) x sensitivity (ISO), or -1 until reported.
+   */
+  private double exposureIndex = -1;
+  /**
+   * {@link #exposureIndex} once the torch had settled after turning on, or -1.
+   */
+  private double exposureIndexWithTorch = -1;
+
+  TorchController(Torch torch) {
+    this.torch = torch;
+  }
+
+  /**
+   * Measures the brightness of a frame from its Y plane.
+   */
+  void onFrame(Image image) {
+    Image.Plane plane = image.getPlanes()[0];
+    ByteBuffer buffer = plane.getBuffer();
+    int rowStride = plane.getRowStride();
+    int pixelStride = plane.getPixelStride();
+    int width = image.getWidth();
+    int height = image.getHeight();
+
+    long sum = 0;
+    int count = 0;
+    for (int y = 0; y < height; y += SAMPLE_STEP) {
+      int row = y * rowStride;
+      for (int x = 0; x < width; x += SAMPLE_STEP) {
+        sum += buffer.get(row + x * pixelStride) & 0xFF;
+        count++;
+      }
+    }
+    if (count == 0) {
+      return;
+    }
+
+    float frameLuma = (float) sum / count;
+    // smooth out single frames, e.g. a hand passing in front of the camera
+    luma = luma < 0 ? frameLuma : luma * 0.8f + frameLuma * 0.2f;
+    framesSinceSwitch++;
+    if (on && framesSinceSwitch == FRAMES_TO_SETTLE) {
+      torchGain = Math.max(0, luma - lumaBeforeOn);
+      exposureIndexWithTorch = exposureIndex;
+    }
+    update();
+  }
+
+  /**
+   * Called with the exposure chosen by auto-exposure for each capture result.
+   */
+  void onExposure(Long exposureTimeNs, Integer sensitivity) {
+    if (exposureTimeNs == null || sensitivity == null) {
+      return;
+    }
+    double index = (double) exposureTimeNs * sensitivity;
+    exposureIndex = exposureIndex < 0 ? index : exposureIndex * 0.8 + index * 0.2;
+    if (!on) {
+      exposureMaxedOut = exposureTimeNs >= LONG_EXPOSURE_NS && sensitivity >= HIGH_SENSITIVITY;
+    }
+  }
+
+  @Override
+  public void detected(int barcodeCount) {
+    failedReads = barcodeCount > 0 ? 0 : failedReads + 1;
+  }
+
+  private void update() {
+    long now = SystemClock.elapsedRealtime();
+    if (!on) {
+      boolean dark = luma < DARK_LUMA || exposureMaxedOut;
+      if (dark && failedReads >= FAILED_READS_BEFORE_ON && now - lastSwitch >= MIN_OFF_MS) {
+        Log.i(TAG, "Scene is dark (luma " + luma + "), turning torch on");
+        lumaBeforeOn = luma;
+        switchTorch(true, now);
+      }
+    } else if (framesSinceSwitch > FRAMES_TO_SETTLE && now - lastSwitch >= MIN_ON_MS) {
+      if (exposureIndexWithTorch > 0) {
+        if (exposureIndex < exposureIndexWithTorch * BRIGHTER_EXPOSURE_RATIO) {
+          Log.i(TAG, "Exposure dropped from " + exposureIndexWithTorch + " to " + exposureIndex
+            + " with torch on, turning torch off");
+          switchTorch(false, now);
+        }
+      } else {
+        // no exposure reported, estimate the ambient light from luma as well as possible
+        float ambient = luma - torchGain;
+        if (ambient > BRIGHT_LUMA) {
+          Log.i(TAG, "Scene is bright enough without torch (ambient luma " + ambient + "), turning torch off");
+          switchTorch(false, now);
+        }
+      }
+    }
+  }
+
+  private void switchTorch(boolean on, long now) {
+    this.on = on;
+    lastSwitch = now;
+    framesSinceSwitch = 0;
+    failedReads = 0;
+    exposureIndexWithTorch = -1;
+    torch.setTorch(on);
+  }
+}
@@ -0,0 +1,245 @@
+package com.github.rmtmckenzie.qr_mobile_vision;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.Trace;
+
+import androidx.annotation.GuardedBy;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-frame tracing of the scanning pipeline.
+ * <p>
+ * The static helpers emit {@link Trace} sections, so every frame shows up in systrace/Perfetto
+ * system traces as acquire, convert, decode and deliver slices. On top of that, when enabled,
+ * each frame's stage timestamps are kept in a ring buffer that can be dumped as a Chrome
+ * trace-event JSON file, which both chrome://tracing and ui.perfetto.dev can open.
+ */
+class TraceLog {
+  static final String ACQUIRE = "qrmv:acquire";
+  static final String CONVERT = "qrmv:convert";
+  static final String DECODE = "qrmv:decode";
+  static final String DELIVER = "qrmv:deliver";
+  static final String SEND = "qrmv:send";
+
+  private static final AtomicInteger nextCookie = new AtomicInteger();
+
+  static void beginSection(String name) {
+    Trace.beginSection(name);
+  }
+
+  static void endSection() {
+    Trace.endSection();
+  }
+
+  /**
+   * Starts a section that may end on a different thread, returning the cookie to end it with.
+   */
+  static int beginAsyncSection(String name) {
+    int cookie = nextCookie.incrementAndGet();
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+      Trace.beginAsyncSection(name, cookie);
+    }
+    return cookie;
+  }
+
+  static void endAsyncSection(String name, int cookie) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+      Trace.endAsyncSection(name, cookie);
+    }
+  }
+
+  /**
+   * Stage timestamps of one frame, all from {@link System#nanoTime()} apart from the sensor
+   * timestamp which is in the camera's own time base. Stages a frame never reached stay 0.
+   * Stages are filled in from the main thread and the decode pool and read by {@link #dump},
+   * so the fields are volatile.
+   */
+  static class FrameEvent {
+    final long sessionId;
+    final long frameNumber;
+    final long sensorTimestampNs;
+    final long acquiredNs;
+    volatile long convertStartNs;
+    /**
+     * When the candidate cascade, which runs at the start of conversion, decided what to do
+     * with the frame, or 0 if the cascade is off.
+     */
+    volatile long cascadeEndNs;
+    /**
+     * The cascade's verdict, or null if the cascade is off.
+     */
+    volatile String cascade;
+    volatile long decodeStartNs;
+    volatile long decodeEndNs;
+    volatile long deliverStartNs;
+    volatile long deliverEndNs;
+    volatile int resultCount;
+    /**
+     * Replaced by a newer frame before the detector got to it.
+     */
+    volatile boolean skipped;
+    volatile long skippedNs;
+
+    private FrameEvent(long sessionId, long frameNumber, long sensorTimestampNs) {
+      this.sessionId = sessionId;
+      this.frameNumber = frameNumber;
+      this.sensorTimestampNs = sensorTimestampNs;
+      this.acquiredNs = System.nanoTime();
+    }
+
+    void markSkipped() {
+      skipped = true;
+      skippedNs = System.nanoTime();
+    }
+  }
+
+  /**
+   * Records the frames of one session.
+   */
+  class Track {
+    private final long sessionId;
+    private long frameNumber;
+
+    private Track(long sessionId) {
+      this.sessionId = sessionId;
+    }
+
+    /**
+     * @return an event to fill in for a newly acquired frame, or null if the log is disabled.
+     */
+    FrameEvent begin(long sensorTimestampNs) {
+      if (!enabled) {
+        return null;
+      }
+      return new FrameEvent(sessionId, frameNumber++, sensorTimestampNs);
+    }
+
+    void commit(FrameEvent event) {
+      if (event != null) {
+        TraceLog.this.commit(event);
+      }
+    }
+  }
+
+  private volatile boolean enabled;
+
+  @GuardedBy("this")
+  private int capacity;
+  @GuardedBy("this")
+  private float capacityScale = 1f;
+  @GuardedBy("this")
+  private FrameEvent[] ring = new FrameEvent[0];
+  @GuardedBy("this")
+  private int next;
+  @GuardedBy("this")
+  private int size;
+
+  Track track(long sessionId) {
+    return new Track(sessionId);
+  }
+
+  /**
+   * Keeps the last {@code capacity} frames, or disables the log if capacity is 0.
+   */
+  synchronized void setCapacity(int capacity) {
+    this.capacity = Math.max(0, capacity);
+    ring = new FrameEvent[(int) (this.capacity * capacityScale)];
+    next = 0;
+    size = 0;
+    enabled = ring.length > 0;
+  }
+
+  synchronized int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Keeps only {@code scale} of the configured capacity, holding on to the newest frames.
+   * Recording pauses while the scaled capacity is 0 and resumes once it is scaled back up.
+   */
+  synchronized void setCapacityScale(float scale) {
+    capacityScale = scale;
+    List<FrameEvent> events = snapshot();
+    ring = new FrameEvent[(int) (capacity * scale)];
+    size = Math.min(events.size(), ring.length);
+    for (int i = 0; i < size; ++i) {
+      ring[i] = events.get(events.size() - size + i);
+    }
+    next = ring.length == 0 ? 0 : size % ring.length;
+    enabled = ring.length > 0;
+  }
+
+  private synchronized void commit(FrameEvent event) {
+    if (ring.length == 0) {
+      return;
+    }
+    ring[next] = event;
+    next = (next + 1) % ring.length;
+    size = Math.min(size + 1, ring.length);
+  }
+
+  private synchronized List<FrameEvent> snapshot() {
+    List<FrameEvent> events = new ArrayList<>(size);
+    int start = (next - size + ring.length) % Math.max(ring.length, 1);
+    for (int i = 0; i < size; ++i) {
+      events.add(ring[(start + i) % ring.length]);
+    }
+    return events;
+  }
+
+  /**
+   * Writes the buffered frames to {@code file} in Chrome trace-event format, with one track
+   * per session. Safe to call from any thread; recording carries on while writing.
+   */
+  void dump(File file) throws IOException {
+    List<FrameEvent> events = snapshot();
+    int pid = Process.myPid();
+
+    try (Writer writer = new BufferedWriter(new FileWriter(file))) {
+      writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+      boolean first = true;
+      for (FrameEvent event : events) {
+        long queuedEnd = event.skipped ? event.skippedNs : event.convertStartNs;
+        String args = "{\"frame\":" + event.frameNumber
+          + ",\"sensorTimestampNs\":" + event.sensorTimestampNs
+          + ",\"results\":" + event.resultCount
+          + ",\"skipped\":" + event.skipped
+          + (event.cascade == null ? "" : ",\"cascade\":\"" + event.cascade + "\"") + "}";
+
+        first = writeSlice(writer, first, pid, event.sessionId, event.skipped ? "skipped" : "queued",
+          event.acquiredNs, queuedEnd, args);
+        first = writeSlice(writer, first, pid, event.sessionId, "cascade", event.convertStartNs, event.cascadeEndNs, args);
+        first = writeSlice(writer, first, pid, event.sessionId, "convert",
+          event.cascadeEndNs != 0 ? event.cascadeEndNs : event.convertStartNs, event.decodeStartNs, args);
+        first = writeSlice(writer, first, pid, event.sessionId, "decode", event.decodeStartNs, event.decodeEndNs, args);
+        first = writeSlice(writer, first, pid, event.sessionId, "deliver", event.deliverStartNs, event.deliverEndNs, args);
+      }
+      writer.write("]}");
+    }
+  }
+
+  private static boolean writeSlice(Writer writer, boolean first, int pid, long tid, String name,
+                                    long startNs, long endNs, String args) throws IOException {
+    if (startNs == 0 || endNs == 0) {
+      return first;
+    }
+    if (!first) {
+      writer.write(',');
+    }
+    writer.write("{\"name\":\"" + name + "\",\"cat\":\"qrmv\",\"ph\":\"X\",\"pid\":" + pid
+      + ",\"tid\":" + tid
+      + ",\"ts\":" + (startNs / 1000.0)
+      + ",\"dur\":" + (Math.max(0, endNs - startNs) / 1000.0)
+      + ",\"args\":" + args + "}");
+    return false;
+  }
+}
@@ -0,0 +1,96 @@
+package com.github.rmtmckenzie.qr_mobile_vision;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class CandidateCascadeTest {
+  private static final int WIDTH = 128;
+  private static final int HEIGHT = 96;
+
+  private static Image image(byte[] luma) {
+    return image(luma, WIDTH, HEIGHT);
+  }
+
+  private static Image image(byte[] luma, int width, int height) {
+    Image.Plane plane = mock(Image.Plane.class);
+    when(plane.getBuffer()).thenReturn(ByteBuffer.wrap(luma));
+    when(plane.getRowStride()).thenReturn(width);
+    when(plane.getPixelStride()).thenReturn(1);
+    Image image = mock(Image.class);
+    when(image.getPlanes()).thenReturn(new Image.Plane[]{plane});
+    when(image.getWidth()).thenReturn(width);
+    when(image.getHeight()).thenReturn(height);
+    return image;
+  }
+
+  @Test
+  public void inspect_flatFrame_isSkipped() {
+    CandidateCascade cascade = new CandidateCascade(0.5f, 0);
+
+    CandidateCascade.Decision decision = cascade.inspect(image(new byte[WIDTH * HEIGHT]));
+
+    assertEquals(CandidateCascade.Verdict.SKIP, decision.verdict);
+  }
+
+  @Test
+  public void inspect_barsInOnePlace_cropsAroundThemWithMargin() {
+    int width = 320;
+    int height = 256;
+    byte[] luma = new byte[width * height];
+    // bars over cells 4-5 across and 3-4 down
+    for (int y = 96; y < 160; ++y) {
+      for (int x = 128; x < 192; ++x) {
+        luma[y * width + x] = (byte) (x / 8 % 2 == 0 ? 0 : 255);
+      }
+    }
+    CandidateCascade cascade = new CandidateCascade(0.5f, 0);
+
+    CandidateCascade.Decision decision = cascade.inspect(image(luma, width, height));
+
+    assertEquals(CandidateCascade.Verdict.CROP, decision.verdict);
+    assertEquals(96, decision.left);
+    assertEquals(64, decision.top);
+    assertEquals(224, decision.right);
+    assertEquals(192, decision.bottom);
+    assertEquals(1L, cascade.stats().get("cropped"));
+  }
+
+  @Test
+  public void inspect_barsEverywhere_decodesWholeFrame() {
+    byte[] luma = new byte[WIDTH * HEIGHT];
+    for (int i = 0; i < luma.length; ++i) {
+      // bars two samples wide
+      luma[i] = (byte) ((i % WIDTH) / 8 % 2 == 0 ? 0 : 255);
+    }
+    CandidateCascade cascade = new CandidateCascade(0.5f, 0);
+
+    assertEquals(CandidateCascade.Verdict.FULL, cascade.inspect(image(luma)).verdict);
+  }
+
+  @Test
+  public void inspect_auditsEveryIntervalSkippedFrames() {
+    CandidateCascade cascade = new CandidateCascade(0.5f, 3);
+    Image flat = image(new byte[WIDTH * HEIGHT]);
+
+    assertEquals(CandidateCascade.Verdict.SKIP, cascade.inspect(flat).verdict);
+    assertEquals(CandidateCascade.Verdict.SKIP, cascade.inspect(flat).verdict);
+    assertEquals(CandidateCascade.Verdict.AUDIT, cascade.inspect(flat).verdict);
+    cascade.audited(1);
+    assertNotEquals(CandidateCascade.Verdict.AUDIT, cascade.inspect(flat).verdict);
+
+    Map<String, Object> stats = cascade.stats();
+    assertEquals(4L, stats.get("frames"));
+    assertEquals(3L, stats.get("skipped"));
+    assertEquals(1L, stats.get("audited"));
+    assertEquals(1L, stats.get("auditMisses"));
+  }
+}
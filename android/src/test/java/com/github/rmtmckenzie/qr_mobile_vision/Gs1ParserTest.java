@@ -0,0 +1,87 @@
+package com.github.rmtmckenzie.qr_mobile_vision;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.mlkit.vision.barcode.common.Barcode;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+public class Gs1ParserTest {
+  @Test
+  public void parse_fixedAndVariableLengthElements() {
+    Map<String, String> elements = Gs1Parser.parse("]d2010950110153000317261231" + "10ABC123\u001d" + "21XYZ");
+
+    assertEquals(4, elements.size());
+    assertEquals("09501101530003", elements.get("01"));
+    assertEquals("261231", elements.get("17"));
+    assertEquals("ABC123", elements.get("10"));
+    assertEquals("XYZ", elements.get("21"));
+  }
+
+  @Test
+  public void parse_fourDigitAi() {
+    Map<String, String> elements = Gs1Parser.parse("\u001d0109501101530003" + "3103001250");
+
+    assertEquals("001250", elements.get("3103"));
+  }
+
+  @Test
+  public void parse_bracketedForm() {
+    Map<String, String> elements = Gs1Parser.parse("(01)09501101530003(10)ABC");
+
+    assertEquals("09501101530003", elements.get("01"));
+    assertEquals("ABC", elements.get("10"));
+  }
+
+  @Test
+  public void parse_truncatedFixedLength_isRejected() {
+    assertNull(Gs1Parser.parse("]C10195011"));
+  }
+
+  @Test
+  public void isGs1_plainText_isNotGs1() {
+    assertFalse(Gs1Parser.isGs1("0123 hello"));
+    assertTrue(Gs1Parser.isGs1("]C10109501101530003"));
+    assertTrue(Gs1Parser.isGs1("010950110153000310AB\u001d21X"));
+  }
+
+  @Test
+  public void isGs1_bracketedText_needsAKnownAi() {
+    assertTrue(Gs1Parser.isGs1("(01)09501101530003(10)ABC"));
+    assertTrue(Gs1Parser.isGs1("(3103)000500"));
+    assertFalse(Gs1Parser.isGs1("(hello)"));
+    assertFalse(Gs1Parser.isGs1("(1)23"));
+    // 01 is a two digit AI, so (0123) isn't one
+    assertFalse(Gs1Parser.isGs1("(0123)456"));
+    assertNull(Gs1Parser.parse("(0123)456"));
+  }
+
+  @Test
+  public void isGs1_unmarkedValuesOfGs1Formats() {
+    // as ML Kit returns them, with no symbology identifier, FNC1 or separator
+    assertTrue(Gs1Parser.isGs1(Barcode.FORMAT_CODE_128, "00106141411234567897"));
+    assertTrue(Gs1Parser.isGs1(Barcode.FORMAT_DATA_MATRIX, "0109506000134352" + "17261231" + "10LOT7"));
+    assertTrue(Gs1Parser.isGs1(Barcode.FORMAT_QR_CODE, "0109506000134352"));
+
+    Map<String, String> elements = Gs1Parser.parse("0109506000134352" + "17261231" + "10LOT7");
+    assertEquals("09506000134352", elements.get("01"));
+    assertEquals("261231", elements.get("17"));
+    assertEquals("LOT7", elements.get("10"));
+  }
+
+  @Test
+  public void isGs1_unmarkedPlainNumbers_areNotGs1() {
+    // wrong check digit
+    assertFalse(Gs1Parser.isGs1(Barcode.FORMAT_CODE_128, "0109506000134353"));
+    // parses, but doesn't start with an SSCC or GTIN
+    assertFalse(Gs1Parser.isGs1(Barcode.FORMAT_CODE_128, "12345678"));
+    // not a GS1-capable format
+    assertFalse(Gs1Parser.isGs1(Barcode.FORMAT_EAN_13, "0109506000134352"));
+    assertFalse(Gs1Parser.isGs1(Barcode.FORMAT_QR_CODE, "hello"));
+  }
+}
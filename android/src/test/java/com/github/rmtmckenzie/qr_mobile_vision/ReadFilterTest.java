@@ -0,0 +1,68 @@
+package com.github.rmtmckenzie.qr_mobile_vision;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.mlkit.vision.barcode.common.Barcode;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ReadFilterTest {
+  @Test
+  public void compile_emptySpec_isNoFilter() {
+    assertNull(ReadFilter.compile(null));
+    assertNull(ReadFilter.compile(new HashMap<String, Object>()));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void compile_invalidPattern_throws() {
+    Map<String, Object> spec = new HashMap<>();
+    spec.put("pattern", "[unclosed");
+    ReadFilter.compile(spec);
+  }
+
+  @Test
+  public void accept_countsRejectionsByRule() {
+    Map<String, Object> spec = new HashMap<>();
+    spec.put("formats", Collections.singletonList("QR_CODE"));
+    spec.put("prefixes", Arrays.asList("AB", "CD"));
+    spec.put("minLength", 4);
+    spec.put("maxLength", 8);
+    spec.put("pattern", "[A-Z]{2}[0-9]+");
+    ReadFilter filter = ReadFilter.compile(spec);
+
+    assertTrue(filter.accept(Barcode.FORMAT_QR_CODE, "AB123"));
+    assertFalse(filter.accept(Barcode.FORMAT_CODE_128, "AB123"));
+    assertFalse(filter.accept(Barcode.FORMAT_QR_CODE, "AB1"));
+    assertFalse(filter.accept(Barcode.FORMAT_QR_CODE, "XY123"));
+    assertFalse(filter.accept(Barcode.FORMAT_QR_CODE, "CD12x"));
+
+    Map<String, Object> stats = filter.stats();
+    assertEquals(1L, stats.get("accepted"));
+    assertEquals(1L, stats.get("rejectedFormat"));
+    assertEquals(1L, stats.get("rejectedLength"));
+    assertEquals(1L, stats.get("rejectedPrefix"));
+    assertEquals(1L, stats.get("rejectedPattern"));
+    assertEquals(4L, stats.get("rejected"));
+  }
+
+  @Test
+  public void accept_requiresGs1Ais() {
+    Map<String, Object> spec = new HashMap<>();
+    spec.put("gs1Ais", Arrays.asList("01", "17"));
+    ReadFilter filter = ReadFilter.compile(spec);
+
+    assertTrue(filter.accept(Barcode.FORMAT_DATA_MATRIX, "]d20109501101530003172612311" + "0ABC"));
+    assertTrue(filter.accept(Barcode.FORMAT_CODE_128, "0109501101530003" + "17261231"));
+    assertFalse(filter.accept(Barcode.FORMAT_DATA_MATRIX, "]d20109501101530003"));
+    assertFalse(filter.accept(Barcode.FORMAT_QR_CODE, "https://example.com"));
+    assertEquals(2L, filter.stats().get("rejectedGs1"));
+  }
+}
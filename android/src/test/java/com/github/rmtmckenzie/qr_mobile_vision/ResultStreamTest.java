@@ -0,0 +1,103 @@
+package com.github.rmtmckenzie.qr_mobile_vision;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.flutter.plugin.common.EventChannel;
+import org.junit.Test;
+
+public class ResultStreamTest {
+  private static Map<String, Object> read(String data) {
+    Map<String, Object> read = new HashMap<>();
+    read.put("sessionId", 1L);
+    read.put("data", data);
+    return read;
+  }
+
+  private static Map<String, Object> options(int capacity, String policy) {
+    Map<String, Object> options = new HashMap<>();
+    options.put("capacity", capacity);
+    options.put("overflowPolicy", policy);
+    return options;
+  }
+
+  @Test
+  public void offer_withoutListener_isRefused() {
+    ResultStream stream = new ResultStream();
+    assertFalse(stream.offer(read("a")));
+  }
+
+  @Test
+  public void offer_onlyDeliversWithCredits() {
+    ResultStream stream = new ResultStream();
+    EventChannel.EventSink sink = mock(EventChannel.EventSink.class);
+    stream.onListen(options(4, "DROP_OLDEST"), sink);
+
+    assertTrue(stream.offer(read("a")));
+    verify(sink, never()).success(any());
+
+    stream.request(1);
+    verify(sink, times(1)).success(any());
+    assertEquals(0, stream.stats().get("buffered"));
+  }
+
+  @Test
+  public void offer_whenFull_dropsOldest() {
+    ResultStream stream = new ResultStream();
+    EventChannel.EventSink sink = mock(EventChannel.EventSink.class);
+    stream.onListen(options(2, "DROP_OLDEST"), sink);
+
+    stream.offer(read("a"));
+    stream.offer(read("b"));
+    stream.offer(read("c"));
+
+    assertEquals(2, stream.stats().get("buffered"));
+    assertEquals(1L, stream.stats().get("dropped"));
+  }
+
+  @Test
+  public void offer_coalescesIdenticalReads() {
+    ResultStream stream = new ResultStream();
+    EventChannel.EventSink sink = mock(EventChannel.EventSink.class);
+    stream.onListen(options(2, "COALESCE"), sink);
+
+    Map<String, Object> first = read("a");
+    stream.offer(first);
+    stream.offer(read("a"));
+    stream.offer(read("a"));
+
+    assertEquals(1, stream.stats().get("buffered"));
+    assertEquals(2L, stream.stats().get("coalesced"));
+    assertEquals(3, first.get("count"));
+  }
+
+  @Test
+  public void setCapacityScale_trimsBufferAndRestores() {
+    ResultStream stream = new ResultStream();
+    EventChannel.EventSink sink = mock(EventChannel.EventSink.class);
+    stream.onListen(options(4, "DROP_OLDEST"), sink);
+
+    stream.offer(read("a"));
+    stream.offer(read("b"));
+    stream.offer(read("c"));
+    stream.offer(read("d"));
+
+    stream.setCapacityScale(0.5f);
+    assertEquals(2, stream.stats().get("buffered"));
+    assertEquals(2L, stream.stats().get("dropped"));
+
+    stream.setCapacityScale(1f);
+    stream.offer(read("e"));
+    assertEquals(3, stream.stats().get("buffered"));
+    assertEquals(4, stream.stats().get("effectiveCapacity"));
+  }
+}
@@ -0,0 +1,96 @@
+package com.github.rmtmckenzie.qr_mobile_vision;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.when;
+
+import android.media.Image;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.MockedStatic;
+
+public class TorchControllerTest {
+  private static final int WIDTH = 64;
+  private static final int HEIGHT = 48;
+
+  private MockedStatic<SystemClock> clock;
+  private MockedStatic<Log> log;
+  private long now = 10_000;
+  private boolean torchOn;
+  private TorchController controller;
+
+  @Before
+  public void setUp() {
+    clock = mockStatic(SystemClock.class);
+    clock.when(SystemClock::elapsedRealtime).thenAnswer(invocation -> now);
+    log = mockStatic(Log.class);
+    controller = new TorchController(on -> torchOn = on);
+  }
+
+  @After
+  public void tearDown() {
+    clock.close();
+    log.close();
+  }
+
+  private static Image frame(int luma) {
+    byte[] pixels = new byte[WIDTH * HEIGHT];
+    Arrays.fill(pixels, (byte) luma);
+    Image.Plane plane = mock(Image.Plane.class);
+    when(plane.getBuffer()).thenReturn(ByteBuffer.wrap(pixels));
+    when(plane.getRowStride()).thenReturn(WIDTH);
+    when(plane.getPixelStride()).thenReturn(1);
+    Image image = mock(Image.class);
+    when(image.getPlanes()).thenReturn(new Image.Plane[]{plane});
+    when(image.getWidth()).thenReturn(WIDTH);
+    when(image.getHeight()).thenReturn(HEIGHT);
+    return image;
+  }
+
+  private void frames(int count, Image image, long exposureNs, int sensitivity) {
+    for (int i = 0; i < count; ++i) {
+      controller.onExposure(exposureNs, sensitivity);
+      controller.detected(0);
+      controller.onFrame(image);
+    }
+  }
+
+  private void turnOnInTheDark() {
+    frames(10, frame(30), 40_000_000L, 1600);
+    assertTrue(torchOn);
+  }
+
+  @Test
+  public void torchStaysOnWhileTheRoomStaysDark() {
+    turnOnInTheDark();
+    // auto-exposure brings the lit frame back to its target brightness
+    Image normalised = frame(110);
+    frames(20, normalised, 20_000_000L, 800);
+    now += 5000;
+    frames(30, normalised, 20_000_000L, 800);
+
+    assertTrue(torchOn);
+  }
+
+  @Test
+  public void torchTurnsOffOnceAutoExposureNeedsMuchLessLight() {
+    turnOnInTheDark();
+    Image normalised = frame(110);
+    frames(20, normalised, 20_000_000L, 800);
+    now += 5000;
+
+    // the room got brighter: same luma, far shorter exposure at lower gain
+    frames(10, normalised, 4_000_000L, 200);
+
+    assertFalse(torchOn);
+  }
+}
@@ -1,23 +1,106 @@
 import 'package:flutter/foundation.dart';
 import 'package:qr_mobile_vision/src/barcode_formats.dart';
+import 'package:qr_mobile_vision/src/barcode_payload.dart';
 import 'package:qr_mobile_vision/src/camera_direction.dart';
+import 'package:qr_mobile_vision/src/camera_state.dart';
+import 'package:qr_mobile_vision/src/capture_profile.dart';
+import 'package:qr_mobile_vision/src/decoded_image.dart';
+import 'package:qr_mobile_vision/src/lens_preference.dart';
 import 'package:qr_mobile_vision/src/preview_details.dart';
 import 'package:qr_mobile_vision/src/qr_mobile_vision_platform_interface.dart';
+import 'package:qr_mobile_vision/src/qr_result.dart';
+import 'package:qr_mobile_vision/src/read_filter.dart';
 
 export 'package:qr_mobile_vision/src/barcode_formats.dart';
+export 'package:qr_mobile_vision/src/barcode_payload.dart';
 export 'package:qr_mobile_vision/src/camera_direction.dart';
+export 'package:qr_mobile_vision/src/candidate_cascade.dart';
+export 'package:qr_mobile_vision/src/camera_state.dart';
+export 'package:qr_mobile_vision/src/capture_profile.dart';
+export 'package:qr_mobile_vision/src/decoded_image.dart';
+export 'package:qr_mobile_vision/src/evidence_capture.dart';
+export 'package:qr_mobile_vision/src/lens_preference.dart';
+export 'package:qr_mobile_vision/src/liveness_source.dart';
+export 'package:qr_mobile_vision/src/qr_result.dart';
+export 'package:qr_mobile_vision/src/read_filter.dart';
 
 /// QR Mobile Vision wrapper allowing for convenient usage of Platform interface
 class QrMobileVision {
   /// Start the QR reading. Attempts to find the closest camera resolution for
   /// the given width/height, chooses the appropriate direction, and tells the
   /// framework which formats to listen to.
+  ///
+  /// On android the returned future completes once the camera is running and
+  /// the scanner is ready to decode, which start up concurrently; see
+  /// [PreviewDetails.startupTimings].
+  ///
+  /// Several sessions can run at once; each gets its own camera and preview
+  /// texture, identified by [PreviewDetails.sessionId].
+  ///
+  /// Each read is passed to [qrCodeHandler], and to [payloadHandler] and
+  /// [evidenceHandler] when given. While [results] is listened to, reads from
+  /// every session go to that stream instead and none of these handlers are
+  /// called; the stream's [QrResult]s carry the payload and evidence path.
+  ///
+  /// If [headless] is true no preview is drawn and [PreviewDetails.textureId]
+  /// is null; the camera only feeds the scanner. Only supported on android.
+  ///
+  /// [lensPreference] picks between several cameras facing the same way, which
+  /// is also only supported on android.
+  ///
+  /// On android the camera is reopened automatically if it is lost, e.g. to
+  /// another app; [cameraStateHandler] is told about each state change,
+  /// including how long reading was interrupted for.
+  ///
+  /// With [autoTorch] the torch is turned on when the scene is dark and reads
+  /// are failing, and off again once it is no longer needed (android only).
+  /// Calling [toggleFlash] switches back to manual control.
+  ///
+  /// If [payloadHandler] is given, each read is also parsed into a
+  /// [BarcodePayload] (GS1 application identifiers, url, wifi, ...) on a
+  /// native background thread before being sent, so that the UI isolate
+  /// doesn't have to parse it. Not called while [results] is listened to.
+  /// Android only.
+  ///
+  /// Reads that don't pass [filter] are dropped on the native side and only
+  /// counted, see [filterStats]. Android only.
+  ///
+  /// [captureProfile] tunes the camera for the scene, e.g.
+  /// [CaptureProfile.conveyor] for codes moving past a fixed camera.
+  ///
+  /// With a [candidateCascade], frames are only decoded where a cheap native
+  /// check finds something that looks like a barcode; see [cascadeStats] for
+  /// how many frames it skipped and codes it missed. Android only.
+  ///
+  /// With [evidenceCapture], a JPEG of the frame behind each read is saved;
+  /// [evidenceHandler] is given each read along with the path its image is
+  /// being saved to - unless [results] is listened to, which then gets the
+  /// reads and paths instead. Android only.
+  ///
+  /// If [heartbeatTimeout] is given, the session stops itself once it hasn't
+  /// been kept alive for that long, by [heartbeat] calls or by its preview
+  /// texture depending on [livenessSource]. Headless sessions have no preview
+  /// texture, so can't be started with a timeout and [LivenessSource.ENGINE].
+  /// A session that times out is reported to [cameraStateHandler] as
+  /// [CameraState.STOPPED] with the reason "timed out". Android only.
   static Future<PreviewDetails> start({
     required int width,
     required int height,
     required ValueChanged<String?> qrCodeHandler,
     CameraDirection cameraDirection = CameraDirection.BACK,
     List<BarcodeFormats>? formats = defaultBarcodeFormats,
+    bool headless = false,
+    LensPreference lensPreference = LensPreference.DEFAULT,
+    ValueChanged<CameraStateEvent>? cameraStateHandler,
+    bool autoTorch = false,
+    ValueChanged<BarcodePayload>? payloadHandler,
+    ReadFilter? filter,
+    CaptureProfile captureProfile = CaptureProfile.standard,
+    CandidateCascade? candidateCascade,
+    EvidenceCapture? evidenceCapture,
+    ValueChanged<QrResult>? evidenceHandler,
+    Duration? heartbeatTimeout,
+    LivenessSource livenessSource = LivenessSource.HEARTBEAT,
   }) async {
     return QrMobileVisionPlatform.instance.start(
       width: width,
@@ -25,18 +108,106 @@ class QrMobileVision {
       qrCodeHandler: qrCodeHandler,
       cameraDirection: cameraDirection,
       formats: formats,
+      headless: headless,
+      lensPreference: lensPreference,
+      cameraStateHandler: cameraStateHandler,
+      autoTorch: autoTorch,
+      payloadHandler: payloadHandler,
+      filter: filter,
+      captureProfile: captureProfile,
+      candidateCascade: candidateCascade,
+      evidenceCapture: evidenceCapture,
+      evidenceHandler: evidenceHandler,
+      heartbeatTimeout: heartbeatTimeout,
+      livenessSource: livenessSource,
     );
   }
 
-  static Future<void> toggleFlash() {
-    return QrMobileVisionPlatform.instance.toggleFlash();
+  /// Toggles the flash. If [sessionId] is given only that session's camera is
+  /// affected, otherwise every running session's is.
+  static Future<void> toggleFlash({int? sessionId}) {
+    return QrMobileVisionPlatform.instance.toggleFlash(sessionId: sessionId);
   }
 
-  static Future<void> stop() {
-    return QrMobileVisionPlatform.instance.stop();
+  /// Stops reading. If [sessionId] is given only that session is stopped,
+  /// otherwise every running session is.
+  static Future<void> stop({int? sessionId}) {
+    return QrMobileVisionPlatform.instance.stop(sessionId: sessionId);
   }
 
-  static Future<void> heartbeat() {
-    return QrMobileVisionPlatform.instance.heartbeat();
+  static Future<void> heartbeat({int? sessionId}) {
+    return QrMobileVisionPlatform.instance.heartbeat(sessionId: sessionId);
+  }
+
+  /// Streams reads from every running session with flow control: the native
+  /// side only sends up to [prefetch] reads ahead of the listener, and nothing
+  /// while the subscription is paused. Reads that can't be sent yet wait in a
+  /// native buffer of [bufferSize], with [overflowPolicy] deciding what to
+  /// give up when it fills; [QrResult.dropped] counts what was lost.
+  ///
+  /// While this is listened to, reads go here instead of to the
+  /// qrCodeHandler passed to [start]. Android only.
+  static Stream<QrResult> results({
+    int bufferSize = 16,
+    ResultOverflowPolicy overflowPolicy = ResultOverflowPolicy.DROP_OLDEST,
+    int prefetch = 4,
+  }) {
+    return QrMobileVisionPlatform.instance.results(
+      bufferSize: bufferSize,
+      overflowPolicy: overflowPolicy,
+      prefetch: prefetch,
+    );
+  }
+
+  /// Counters describing the [results] stream's native buffer.
+  static Future<Map<String, dynamic>> resultStreamStats() {
+    return QrMobileVisionPlatform.instance.resultStreamStats();
+  }
+
+  /// Counts of reads accepted and rejected by each session's [ReadFilter],
+  /// keyed by session id.
+  static Future<Map<String, dynamic>> filterStats({int? sessionId}) {
+    return QrMobileVisionPlatform.instance.filterStats(sessionId: sessionId);
+  }
+
+  /// Counts of frames each session's [CandidateCascade] looked at, skipped,
+  /// cropped and audited, and of codes found on audited frames, keyed by
+  /// session id.
+  static Future<Map<String, dynamic>> cascadeStats({int? sessionId}) {
+    return QrMobileVisionPlatform.instance.cascadeStats(sessionId: sessionId);
+  }
+
+  /// Starts recording how long each camera frame spends being acquired,
+  /// converted, decoded and delivered, keeping the last [capacity] frames.
+  /// Pass 0 to stop recording. Android only.
+  static Future<void> enableTraceLog({int capacity = 300}) {
+    return QrMobileVisionPlatform.instance.enableTraceLog(capacity: capacity);
+  }
+
+  /// Writes the frames recorded since [enableTraceLog] to a json file that
+  /// chrome://tracing or ui.perfetto.dev can open, returning its path.
+  static Future<String?> dumpTraceLog({String? path}) {
+    return QrMobileVisionPlatform.instance.dumpTraceLog(path: path);
+  }
+
+  /// Decodes barcodes from still images rather than the camera. Images are
+  /// given as file [paths] and/or encoded [images] (jpeg, png, ...) and are
+  /// decoded [parallelism] at a time in the background.
+  ///
+  /// Results are streamed in completion order, so use [DecodedImage.index] to
+  /// match them up. Cancelling the subscription stops the remaining images
+  /// from being decoded.
+  static Stream<DecodedImage> decodeImages({
+    List<String>? paths,
+    List<Uint8List>? images,
+    List<BarcodeFormats>? formats = defaultBarcodeFormats,
+    int? parallelism,
+  }) {
+    return QrMobileVisionPlatform.instance.decodeImages(
+      paths: paths,
+      images: images,
+      formats: formats,
+      parallelism: parallelism,
+    );
   }
 }
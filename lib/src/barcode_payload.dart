@@ -0,0 +1,40 @@
+import 'dart:typed_data';
+
+/// A barcode parsed into structured fields on the native side, delivered when
+/// a `payloadHandler` is passed to [QrMobileVision.start]. Android only.
+class BarcodePayload {
+  BarcodePayload(this.data, this.format, this.valueType, {this.gs1, this.fields = const {}, this.rawBytes});
+
+  BarcodePayload.fromMap(this.data, Map<dynamic, dynamic> map)
+      : format = map['format'],
+        valueType = map['valueType'] ?? 'UNKNOWN',
+        gs1 = (map['gs1'] as Map?)?.cast<String, String>(),
+        fields = (map['fields'] as Map?)?.cast<String, dynamic>() ?? const {},
+        rawBytes = map['rawBytes'];
+
+  /// The raw value, as passed to the qrCodeHandler.
+  final String? data;
+
+  /// Name of the barcode's format, e.g. `DATA_MATRIX`.
+  final String? format;
+
+  /// What ML Kit recognised the content as: `URL`, `WIFI`, `EMAIL`, `PHONE`,
+  /// `SMS`, `GEO`, `DRIVER_LICENSE`, `TEXT`, `PRODUCT`, ... or `UNKNOWN`.
+  final String valueType;
+
+  /// GS1 application identifiers and their values, in the order they appear,
+  /// if the content is a GS1 element string.
+  final Map<String, String>? gs1;
+
+  /// Fields extracted for [valueType], e.g. `url` and `title` for `URL` or
+  /// `ssid`, `password` and `encryptionType` for `WIFI`.
+  final Map<String, dynamic> fields;
+
+  /// The content of barcodes that don't hold text.
+  final Uint8List? rawBytes;
+
+  bool get isGs1 => gs1 != null;
+
+  @override
+  String toString() => 'BarcodePayload($format, $valueType, gs1: $gs1, fields: $fields)';
+}
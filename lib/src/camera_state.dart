@@ -0,0 +1,65 @@
+//ignore_for_file: constant_identifier_names
+
+enum CameraState {
+  IDLE,
+  OPENING,
+  CONFIGURING,
+  RUNNING,
+
+  /// The camera was lost (for example to another app) and is being reopened.
+  RECOVERING,
+
+  /// The session was stopped. [CameraStateEvent.reason] is "timed out" when it
+  /// was stopped because it wasn't kept alive within its heartbeat timeout, and
+  /// starts with "gave up" when the camera could not be recovered - after an
+  /// error retrying can't fix, such as the permission being revoked, or too
+  /// many failed attempts.
+  STOPPED,
+}
+
+/// Reported whenever a session's camera changes [CameraState].
+class CameraStateEvent {
+  CameraStateEvent(
+    this.sessionId,
+    this.state, {
+    this.reason,
+    this.attempt = 0,
+    this.downtime,
+    this.totalDowntime = Duration.zero,
+    this.recoveries = 0,
+  });
+
+  CameraStateEvent.fromMap(Map<dynamic, dynamic> map)
+      : sessionId = map['sessionId'],
+        state = CameraState.values.firstWhere(
+          (state) => state.name == map['state'],
+          orElse: () => CameraState.IDLE,
+        ),
+        reason = map['reason'],
+        attempt = map['attempt'] ?? 0,
+        downtime = map['downtimeMs'] == null ? null : Duration(milliseconds: map['downtimeMs']),
+        totalDowntime = Duration(milliseconds: map['totalDowntimeMs'] ?? 0),
+        recoveries = map['recoveries'] ?? 0;
+
+  final int? sessionId;
+  final CameraState state;
+
+  /// Why the camera is recovering, e.g. "disconnected" or "error 4".
+  final String? reason;
+
+  /// Number of recovery attempts made since the camera was last running.
+  final int attempt;
+
+  /// Set when the camera is [CameraState.RUNNING] again after recovering, to
+  /// how long it was unable to read for.
+  final Duration? downtime;
+
+  /// Time spent recovering over the whole session.
+  final Duration totalDowntime;
+
+  /// Number of times the camera has been recovered during the session.
+  final int recoveries;
+
+  @override
+  String toString() => 'CameraStateEvent($sessionId, $state, reason: $reason, attempt: $attempt)';
+}
@@ -0,0 +1,22 @@
+/// A cheap check run natively on each frame before the barcode scanner, so
+/// that frames without anything resembling a barcode aren't decoded at all
+/// and frames with one are only decoded around it. Android only.
+class CandidateCascade {
+  const CandidateCascade({
+    this.sensitivity = 0.5,
+    this.auditInterval = 30,
+  }) : assert(sensitivity >= 0 && sensitivity <= 1);
+
+  /// From 0 to 1. Higher values treat fainter edges as possible barcodes,
+  /// skipping fewer frames but missing fewer codes.
+  final double sensitivity;
+
+  /// Every [auditInterval]th frame that would be skipped is decoded anyway,
+  /// to count how many codes the cascade misses; 0 turns this off.
+  final int auditInterval;
+
+  Map<String, dynamic> toMap() => {
+        'sensitivity': sensitivity,
+        'auditInterval': auditInterval,
+      };
+}
@@ -0,0 +1,37 @@
+/// How the camera is driven while scanning. Android only.
+class CaptureProfile {
+  const CaptureProfile._standard()
+      : _mode = 'DEFAULT',
+        maxExposure = null,
+        focusDistance = null,
+        framesInFlight = 1;
+
+  /// For codes moving past a fixed camera, e.g. on a conveyor belt.
+  ///
+  /// Runs at the highest frame rate the camera supports and keeps exposures
+  /// to at most [maxExposure] so moving labels aren't blurred, raising the
+  /// sensor's sensitivity to compensate where the camera allows manual
+  /// control. If [focusDistance] (in metres) is given, focus is fixed at that
+  /// distance instead of hunting as packages pass. The detector works on
+  /// [framesInFlight] frames at once to keep up with the frame rate.
+  const CaptureProfile.conveyor({
+    this.maxExposure = const Duration(microseconds: 2000),
+    this.focusDistance,
+    this.framesInFlight = 2,
+  }) : _mode = 'CONVEYOR';
+
+  /// Exposure and focus are left to the camera.
+  static const standard = CaptureProfile._standard();
+
+  final String _mode;
+  final Duration? maxExposure;
+  final double? focusDistance;
+  final int framesInFlight;
+
+  Map<String, dynamic> toMap() => {
+        'mode': _mode,
+        if (maxExposure != null) 'maxExposureUs': maxExposure!.inMicroseconds,
+        if (focusDistance != null) 'focusDistance': focusDistance,
+        'framesInFlight': framesInFlight,
+      };
+}
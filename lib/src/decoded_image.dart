@@ -0,0 +1,24 @@
+/// Result of decoding one image passed to [QrMobileVision.decodeImages].
+class DecodedImage {
+  DecodedImage(this.index, this.values, this.formats, this.error);
+
+  DecodedImage.fromMap(Map<dynamic, dynamic> map)
+      : index = map['index'],
+        values = (map['values'] as List?)?.cast<String?>() ?? const [],
+        formats = (map['formats'] as List?)?.cast<String?>() ?? const [],
+        error = map['error'];
+
+  /// Position of the image in the request, counting paths before byte arrays.
+  final int index;
+
+  /// Raw values of every barcode found in the image.
+  final List<String?> values;
+
+  /// Format of each barcode in [values].
+  final List<String?> formats;
+
+  /// Set if the image couldn't be loaded or scanned.
+  final String? error;
+
+  bool get hasError => error != null;
+}
@@ -0,0 +1,33 @@
+/// Saves a JPEG of the labels each read came from, e.g. as proof of what was
+/// scanned: the area of the frame around the barcodes read, with a margin. Frames are encoded and written natively in the background; the
+/// path is delivered with the read straight away and the file appears there
+/// shortly after. When the background queue is full a frame isn't saved and
+/// its read has no path. Android only.
+class EvidenceCapture {
+  const EvidenceCapture({
+    required this.directory,
+    this.subsample = 2,
+    this.quality = 80,
+    this.queueSize = 4,
+  });
+
+  /// Where to save the images. Created if it doesn't exist.
+  final String directory;
+
+  /// Only every [subsample]th pixel in each direction is kept, so 2 saves an
+  /// image a quarter of the size of the area.
+  final int subsample;
+
+  /// JPEG quality, from 0 to 100.
+  final int quality;
+
+  /// How many frames may wait to be written before new ones are dropped.
+  final int queueSize;
+
+  Map<String, dynamic> toMap() => {
+        'directory': directory,
+        'subsample': subsample,
+        'quality': quality,
+        'queueSize': queueSize,
+      };
+}
@@ -0,0 +1,13 @@
+//ignore_for_file: constant_identifier_names
+
+/// Which camera to use when a device has several facing the same direction.
+enum LensPreference {
+  /// The first camera the platform lists for the direction.
+  DEFAULT,
+
+  /// The lens that can focus closest, for small codes held near the camera.
+  CLOSE_RANGE,
+
+  /// The longest lens with autofocus, for codes further away.
+  FAR_RANGE,
+}
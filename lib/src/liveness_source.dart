@@ -0,0 +1,15 @@
+//ignore_for_file: constant_identifier_names
+
+/// What tells the native side that a session is still wanted, so that one
+/// left running by a dead UI is stopped after its heartbeat timeout.
+enum LivenessSource {
+  /// [QrMobileVision.heartbeat] has to be called more often than the
+  /// timeout.
+  HEARTBEAT,
+
+  /// No heartbeat calls are needed: the session is stopped when its preview
+  /// texture is released and not recreated within the timeout, or when the
+  /// flutter engine goes away. Not supported with a timeout for headless
+  /// sessions, which have no preview texture. Android only.
+  ENGINE,
+}
@@ -3,8 +3,13 @@ class NativePreviewDetails {
   num height;
   num? sensorOrientation;
   int? textureId;
+  int? sessionId;
+  Map<String, int> startupTimings;
 
-  NativePreviewDetails(this.width, this.height, this.sensorOrientation, this.textureId);
+  NativePreviewDetails(this.width, this.height, this.sensorOrientation, this.textureId,
+      [int? sessionId, Map<String, int>? startupTimings])
+      : sessionId = sessionId ?? textureId,
+        startupTimings = startupTimings ?? const {};
 }
 
 class PreviewDetails {
@@ -17,4 +22,15 @@ class PreviewDetails {
   num get height => _nativePreviewDetails.height;
   num? get sensorOrientation => _nativePreviewDetails.sensorOrientation;
   int? get textureId => _nativePreviewDetails.textureId;
+
+  /// Identifies the reading session, for calls that should only affect this
+  /// camera when several are running at once.
+  int? get sessionId => _nativePreviewDetails.sessionId;
+
+  /// How many milliseconds after the start call each phase of starting up
+  /// finished: `textureMs`, `cameraSetupMs` (choosing the camera),
+  /// `cameraOpenMs`, `cameraMs` (capture session running), `scannerMs`
+  /// (scanner model loaded) and `totalMs`. The camera and scanner start up
+  /// concurrently. Only reported on android.
+  Map<String, int> get startupTimings => _nativePreviewDetails.startupTimings;
 }
@@ -25,11 +25,25 @@ class QrCamera extends StatefulWidget {
     ErrorCallback? onError,
     this.cameraDirection = CameraDirection.BACK,
     this.formats,
+    this.lensPreference = LensPreference.DEFAULT,
+    this.cameraStateCallback,
+    this.autoTorch = false,
+    this.payloadCallback,
+    this.filter,
+    this.captureProfile = CaptureProfile.standard,
+    this.candidateCascade,
+    this.evidenceCapture,
+    this.evidenceCallback,
+    this.heartbeatTimeout,
+    this.livenessSource = LivenessSource.HEARTBEAT,
   })  : notStartedBuilder = notStartedBuilder ?? _defaultNotStartedBuilder,
         offscreenBuilder = offscreenBuilder ?? notStartedBuilder ?? _defaultOffscreenBuilder,
         onError = onError ?? _defaultOnError;
 
   final BoxFit fit;
+  /// Called with each read, as are [payloadCallback] and [evidenceCallback].
+  /// None of them are called while [QrMobileVision.results] is listened to,
+  /// which gets every session's reads instead.
   final ValueChanged<String?> qrCodeCallback;
   final Widget? child;
   final WidgetBuilder notStartedBuilder;
@@ -37,6 +51,21 @@ class QrCamera extends StatefulWidget {
   final ErrorCallback onError;
   final List<BarcodeFormats>? formats;
   final CameraDirection cameraDirection;
+  final LensPreference lensPreference;
+  final ValueChanged<CameraStateEvent>? cameraStateCallback;
+  final bool autoTorch;
+  final ValueChanged<BarcodePayload>? payloadCallback;
+  final ReadFilter? filter;
+  final CaptureProfile captureProfile;
+  final CandidateCascade? candidateCascade;
+  final EvidenceCapture? evidenceCapture;
+  final ValueChanged<QrResult>? evidenceCallback;
+  /// If given, the native session stops itself once it hasn't been kept alive
+  /// for this long. With [LivenessSource.HEARTBEAT] the widget keeps it alive
+  /// with heartbeats while it is mounted; with [LivenessSource.ENGINE] the
+  /// session is stopped if its preview texture goes away for this long.
+  final Duration? heartbeatTimeout;
+  final LivenessSource livenessSource;
 
   static toggleFlash() {
     QrMobileVision.toggleFlash();
@@ -65,13 +94,14 @@ class QrCameraState extends State<QrCamera> with WidgetsBindingObserver {
   @override
   dispose() {
     _ambiguate(WidgetsBinding.instance)!.removeObserver(this);
+    _stopHeartbeat();
     super.dispose();
   }
 
   @override
   void didUpdateWidget(QrCamera oldWidget) {
-    if (oldWidget.cameraDirection != widget.cameraDirection) {
-      QrMobileVision.stop();
+    if (oldWidget.cameraDirection != widget.cameraDirection || oldWidget.lensPreference != widget.lensPreference) {
+      _stopSession();
       setState(() {
         _asyncInitOnce = null;
       });
@@ -85,7 +115,7 @@ class QrCameraState extends State<QrCamera> with WidgetsBindingObserver {
       setState(() => onScreen = true);
     } else {
       if (_asyncInitOnce != null && onScreen) {
-        QrMobileVision.stop();
+        _stopSession();
       }
       setState(() {
         onScreen = false;
@@ -96,23 +126,83 @@ class QrCameraState extends State<QrCamera> with WidgetsBindingObserver {
 
   bool onScreen = true;
   Future<PreviewDetails>? _asyncInitOnce;
+  Timer? _heartbeatTimer;
 
   Future<PreviewDetails> _asyncInit(num width, num height) async {
     final devicePixelRatio = MediaQuery.of(context).devicePixelRatio;
-    return await QrMobileVision.start(
+    final details = await QrMobileVision.start(
       width: (devicePixelRatio * width.toInt()).ceil(),
       height: (devicePixelRatio * height.toInt()).ceil(),
       qrCodeHandler: widget.qrCodeCallback,
       formats: widget.formats,
       cameraDirection: widget.cameraDirection,
+      lensPreference: widget.lensPreference,
+      cameraStateHandler: _cameraStateChanged,
+      autoTorch: widget.autoTorch,
+      payloadHandler: widget.payloadCallback,
+      filter: widget.filter,
+      captureProfile: widget.captureProfile,
+      candidateCascade: widget.candidateCascade,
+      evidenceCapture: widget.evidenceCapture,
+      evidenceHandler: widget.evidenceCallback,
+      heartbeatTimeout: widget.heartbeatTimeout,
+      livenessSource: widget.livenessSource,
     );
+    _startHeartbeat(details);
+    return details;
+  }
+
+  /// Beats often enough for the session not to time out, when it was started
+  /// with a heartbeat timeout that relies on heartbeats.
+  void _startHeartbeat(PreviewDetails details) {
+    _stopHeartbeat();
+    final timeout = widget.heartbeatTimeout;
+    if (timeout == null || widget.livenessSource != LivenessSource.HEARTBEAT || !mounted) {
+      return;
+    }
+    _heartbeatTimer = Timer.periodic(timeout ~/ 3, (_) {
+      QrMobileVision.heartbeat(sessionId: details.sessionId);
+    });
+  }
+
+  void _cameraStateChanged(CameraStateEvent event) {
+    if (event.state == CameraState.STOPPED) {
+      // a session that timed out is already gone, there is nothing left to keep alive
+      _stopHeartbeat();
+    }
+    widget.cameraStateCallback?.call(event);
+  }
+
+  void _stopHeartbeat() {
+    _heartbeatTimer?.cancel();
+    _heartbeatTimer = null;
+  }
+
+  /// Stops only this widget's session, so other cameras that are running at
+  /// the same time keep reading.
+  Future<void> _stopSession() async {
+    _stopHeartbeat();
+    final initFuture = _asyncInitOnce;
+    if (initFuture == null) {
+      return;
+    }
+    PreviewDetails details;
+    try {
+      details = await initFuture;
+    } catch (_) {
+      // starting failed, so there is no session to stop
+      return;
+    }
+    // starting may have still been in flight above, and begun beating since
+    _stopHeartbeat();
+    await QrMobileVision.stop(sessionId: details.sessionId);
   }
 
   /// This method can be used to restart scanning
   ///  the event that it was paused.
   void restart() {
     (() async {
-      await QrMobileVision.stop();
+      await _stopSession();
       setState(() {
         _asyncInitOnce = null;
       });
@@ -123,14 +213,26 @@ class QrCameraState extends State<QrCamera> with WidgetsBindingObserver {
   /// camera.
   void stop() {
     (() async {
-      await QrMobileVision.stop();
+      await _stopSession();
+    })();
+  }
+
+  /// Toggles the flash of this widget's camera only.
+  void toggleFlash() {
+    (() async {
+      final initFuture = _asyncInitOnce;
+      if (initFuture == null) {
+        return;
+      }
+      final details = await initFuture;
+      await QrMobileVision.toggleFlash(sessionId: details.sessionId);
     })();
   }
 
   @override
   deactivate() {
     super.deactivate();
-    QrMobileVision.stop();
+    _stopSession();
   }
 
   @override
@@ -1,14 +1,52 @@
 import 'package:flutter/foundation.dart';
 import 'package:flutter/services.dart';
+import 'package:qr_mobile_vision/src/barcode_payload.dart';
+import 'package:qr_mobile_vision/src/camera_state.dart';
+import 'package:qr_mobile_vision/src/decoded_image.dart';
+import 'package:qr_mobile_vision/src/qr_result.dart';
 
 class QrChannelReader {
   QrChannelReader(this.channel) {
     channel.setMethodCallHandler((MethodCall call) async {
       switch (call.method) {
         case 'qrRead':
-          if (qrCodeHandler != null) {
-            assert(call.arguments is String);
-            qrCodeHandler!(call.arguments);
+          final arguments = call.arguments;
+          if (arguments is Map) {
+            // reads from a session started on android are tagged with their session
+            final handler = sessionHandlers[arguments['sessionId']];
+            if (handler != null) {
+              handler(arguments['data']);
+            }
+            final payload = arguments['payload'];
+            final payloadHandler = payloadHandlers[arguments['sessionId']];
+            if (payload != null && payloadHandler != null) {
+              payloadHandler(BarcodePayload.fromMap(arguments['data'], payload));
+            }
+            final evidenceHandler = evidenceHandlers[arguments['sessionId']];
+            if (arguments['evidencePath'] != null && evidenceHandler != null) {
+              evidenceHandler(QrResult.fromMap(arguments));
+            }
+          } else if (qrCodeHandler != null) {
+            assert(arguments is String);
+            qrCodeHandler!(arguments);
+          }
+          break;
+        case 'cameraState':
+          final event = CameraStateEvent.fromMap(call.arguments as Map);
+          final handler = stateHandlers[event.sessionId];
+          if (handler != null) {
+            handler(event);
+          }
+          if (event.state == CameraState.STOPPED && event.sessionId != null) {
+            // the session is gone on the native side, e.g. because it timed out
+            _removeSession(event.sessionId!);
+          }
+          break;
+        case 'imageDecoded':
+          final arguments = call.arguments as Map;
+          final handler = batchHandlers[arguments['batchId']];
+          if (handler != null) {
+            handler(DecodedImage.fromMap(arguments));
           }
           break;
         default:
@@ -18,10 +56,62 @@ class QrChannelReader {
     });
   }
 
+  void _removeSession(int sessionId) {
+    sessionHandlers.remove(sessionId);
+    payloadHandlers.remove(sessionId);
+    evidenceHandlers.remove(sessionId);
+    stateHandlers.remove(sessionId);
+  }
+
   void setQrCodeHandler(ValueChanged<String?>? qrch) {
     qrCodeHandler = qrch;
   }
 
+  void setSessionHandler(int sessionId, ValueChanged<String?>? handler) {
+    if (handler == null) {
+      sessionHandlers.remove(sessionId);
+    } else {
+      sessionHandlers[sessionId] = handler;
+    }
+  }
+
+  void setPayloadHandler(int sessionId, ValueChanged<BarcodePayload>? handler) {
+    if (handler == null) {
+      payloadHandlers.remove(sessionId);
+    } else {
+      payloadHandlers[sessionId] = handler;
+    }
+  }
+
+  void setEvidenceHandler(int sessionId, ValueChanged<QrResult>? handler) {
+    if (handler == null) {
+      evidenceHandlers.remove(sessionId);
+    } else {
+      evidenceHandlers[sessionId] = handler;
+    }
+  }
+
+  void setStateHandler(int sessionId, ValueChanged<CameraStateEvent>? handler) {
+    if (handler == null) {
+      stateHandlers.remove(sessionId);
+    } else {
+      stateHandlers[sessionId] = handler;
+    }
+  }
+
+  void setBatchHandler(int batchId, ValueChanged<DecodedImage>? handler) {
+    if (handler == null) {
+      batchHandlers.remove(batchId);
+    } else {
+      batchHandlers[batchId] = handler;
+    }
+  }
+
   MethodChannel channel;
   ValueChanged<String?>? qrCodeHandler;
+  final Map<int, ValueChanged<String?>> sessionHandlers = {};
+  final Map<int, ValueChanged<BarcodePayload>> payloadHandlers = {};
+  final Map<int, ValueChanged<QrResult>> evidenceHandlers = {};
+  final Map<int, ValueChanged<CameraStateEvent>> stateHandlers = {};
+  final Map<int, ValueChanged<DecodedImage>> batchHandlers = {};
 }
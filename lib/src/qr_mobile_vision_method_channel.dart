@@ -1,19 +1,33 @@
+import 'dart:async';
 import 'dart:io';
 
 import 'package:device_info_plus/device_info_plus.dart';
 import 'package:flutter/foundation.dart';
 import 'package:flutter/services.dart';
 import 'package:qr_mobile_vision/src/barcode_formats.dart';
+import 'package:qr_mobile_vision/src/barcode_payload.dart';
 import 'package:qr_mobile_vision/src/camera_direction.dart';
+import 'package:qr_mobile_vision/src/camera_state.dart';
+import 'package:qr_mobile_vision/src/candidate_cascade.dart';
+import 'package:qr_mobile_vision/src/capture_profile.dart';
+import 'package:qr_mobile_vision/src/decoded_image.dart';
+import 'package:qr_mobile_vision/src/evidence_capture.dart';
+import 'package:qr_mobile_vision/src/lens_preference.dart';
+import 'package:qr_mobile_vision/src/liveness_source.dart';
 import 'package:qr_mobile_vision/src/preview_details.dart';
 import 'package:qr_mobile_vision/src/qr_channel_reader.dart';
 import 'package:qr_mobile_vision/src/qr_mobile_vision_platform_interface.dart';
+import 'package:qr_mobile_vision/src/qr_result.dart';
+import 'package:qr_mobile_vision/src/read_filter.dart';
 
 /// An implementation of [QrMobileVisionPlatform] that uses method channels.
 class MethodChannelQrMobileVision extends QrMobileVisionPlatform {
   @visibleForTesting
   final methodChannel = const MethodChannel('qr_mobile_vision');
+  @visibleForTesting
+  final resultChannel = const EventChannel('qr_mobile_vision/results');
   late final QrChannelReader channelReader;
+  int _nextBatchId = 0;
   MethodChannelQrMobileVision() {
     channelReader = QrChannelReader(methodChannel);
   }
@@ -25,6 +39,18 @@ class MethodChannelQrMobileVision extends QrMobileVisionPlatform {
     required ValueChanged<String?> qrCodeHandler,
     CameraDirection cameraDirection = CameraDirection.BACK,
     List<BarcodeFormats>? formats = defaultBarcodeFormats,
+    bool headless = false,
+    LensPreference lensPreference = LensPreference.DEFAULT,
+    ValueChanged<CameraStateEvent>? cameraStateHandler,
+    bool autoTorch = false,
+    ValueChanged<BarcodePayload>? payloadHandler,
+    ReadFilter? filter,
+    CaptureProfile captureProfile = CaptureProfile.standard,
+    CandidateCascade? candidateCascade,
+    EvidenceCapture? evidenceCapture,
+    ValueChanged<QrResult>? evidenceHandler,
+    Duration? heartbeatTimeout,
+    LivenessSource livenessSource = LivenessSource.HEARTBEAT,
   }) async {
     assert(formats == null || formats.isNotEmpty);
     final formatsOrDefault = formats ?? defaultBarcodeFormats;
@@ -38,38 +64,183 @@ class MethodChannelQrMobileVision extends QrMobileVisionPlatform {
     final details = (await methodChannel.invokeMapMethod<String, dynamic>('start', {
       'targetWidth': width,
       'targetHeight': height,
-      'heartbeatTimeout': 0,
+      'heartbeatTimeout': heartbeatTimeout?.inMilliseconds ?? 0,
+      'livenessSource': livenessSource.name,
       'cameraDirection': (cameraDirection == CameraDirection.FRONT ? 0 : 1),
       'formats': formatStrings,
+      'headless': headless,
+      'lensPreference': lensPreference.name,
+      'autoTorch': autoTorch,
+      'parsePayloads': payloadHandler != null,
+      'filter': filter?.toMap(),
+      'captureProfile': captureProfile.toMap(),
+      'candidateCascade': candidateCascade?.toMap(),
+      'evidence': evidenceCapture?.toMap(),
     }))!;
 
     int? textureId = details["textureId"];
+    int? sessionId = details["sessionId"];
     num? orientation = details["surfaceOrientation"];
     num surfaceHeight = details["surfaceHeight"];
     num surfaceWidth = details["surfaceWidth"];
+    assert(headless || textureId != null);
+
+    final startupTimings = (details["startupTimings"] as Map?)?.cast<String, int>();
 
-    final deets = NativePreviewDetails(surfaceWidth, surfaceHeight, orientation, textureId);
+    final deets = NativePreviewDetails(surfaceWidth, surfaceHeight, orientation, textureId, sessionId, startupTimings);
+    if (deets.sessionId != null) {
+      channelReader.setSessionHandler(deets.sessionId!, qrCodeHandler);
+      channelReader.setStateHandler(deets.sessionId!, cameraStateHandler);
+      channelReader.setPayloadHandler(deets.sessionId!, payloadHandler);
+      channelReader.setEvidenceHandler(deets.sessionId!, evidenceHandler);
+    }
     final devInfo = await deviceInfoFut;
 
     return PreviewDetails(deets, devInfo?.version.sdkInt ?? -1);
   }
 
   @override
-  Future toggleFlash() {
-    return methodChannel.invokeMethod('toggleFlash').catchError(_printError);
+  Future toggleFlash({int? sessionId}) {
+    return methodChannel.invokeMethod('toggleFlash', _sessionArguments(sessionId)).catchError(_printError);
+  }
+
+  @override
+  Future stop({int? sessionId}) {
+    if (sessionId == null) {
+      channelReader.setQrCodeHandler(null);
+      channelReader.sessionHandlers.clear();
+      channelReader.stateHandlers.clear();
+      channelReader.payloadHandlers.clear();
+      channelReader.evidenceHandlers.clear();
+    } else {
+      channelReader.setSessionHandler(sessionId, null);
+      channelReader.setStateHandler(sessionId, null);
+      channelReader.setPayloadHandler(sessionId, null);
+      channelReader.setEvidenceHandler(sessionId, null);
+    }
+    return methodChannel.invokeMethod('stop', _sessionArguments(sessionId)).catchError(_printError);
   }
 
   @override
-  Future stop() {
-    channelReader.setQrCodeHandler(null);
-    return methodChannel.invokeMethod('stop').catchError(_printError);
+  Future heartbeat({int? sessionId}) {
+    return methodChannel.invokeMethod('heartbeat', _sessionArguments(sessionId)).catchError(_printError);
   }
 
   @override
-  Future heartbeat() {
-    return methodChannel.invokeMethod('heartbeat').catchError(_printError);
+  Stream<QrResult> results({
+    int bufferSize = 16,
+    ResultOverflowPolicy overflowPolicy = ResultOverflowPolicy.DROP_OLDEST,
+    int prefetch = 4,
+  }) {
+    assert(prefetch > 0);
+    late final StreamController<QrResult> controller;
+    StreamSubscription? subscription;
+    var outstanding = 0;
+
+    // Tops the native side's credits back up to [prefetch], but only while
+    // the listener is keeping up.
+    void grant() {
+      if (controller.isPaused || controller.isClosed) {
+        return;
+      }
+      final n = prefetch - outstanding;
+      if (n > 0) {
+        outstanding += n;
+        methodChannel.invokeMethod('requestResults', {'n': n}).catchError(_printError);
+      }
+    }
+
+    controller = StreamController<QrResult>(
+      // synchronous so that isPaused reflects the listener once add returns
+      sync: true,
+      onListen: () {
+        subscription = resultChannel.receiveBroadcastStream({
+          'capacity': bufferSize,
+          'overflowPolicy': overflowPolicy.name,
+        }).listen(
+          (event) {
+            outstanding--;
+            controller.add(QrResult.fromMap(event as Map));
+            grant();
+          },
+          onError: controller.addError,
+          onDone: controller.close,
+        );
+        grant();
+      },
+      onResume: grant,
+      onCancel: () => subscription?.cancel(),
+    );
+    return controller.stream;
   }
 
+  @override
+  Future<Map<String, dynamic>> resultStreamStats() async {
+    return (await methodChannel.invokeMapMethod<String, dynamic>('resultStreamStats')) ?? {};
+  }
+
+  @override
+  Future<Map<String, dynamic>> filterStats({int? sessionId}) async {
+    return (await methodChannel.invokeMapMethod<String, dynamic>('filterStats', _sessionArguments(sessionId))) ?? {};
+  }
+
+  @override
+  Future<Map<String, dynamic>> cascadeStats({int? sessionId}) async {
+    return (await methodChannel.invokeMapMethod<String, dynamic>('cascadeStats', _sessionArguments(sessionId))) ?? {};
+  }
+
+  @override
+  Future<void> enableTraceLog({int capacity = 300}) {
+    return methodChannel.invokeMethod('enableTraceLog', {'capacity': capacity});
+  }
+
+  @override
+  Future<String?> dumpTraceLog({String? path}) {
+    return methodChannel.invokeMethod<String>('dumpTraceLog', {'path': path});
+  }
+
+  @override
+  Stream<DecodedImage> decodeImages({
+    List<String>? paths,
+    List<Uint8List>? images,
+    List<BarcodeFormats>? formats = defaultBarcodeFormats,
+    int? parallelism,
+  }) {
+    final batchId = _nextBatchId++;
+    final formatsOrDefault = formats ?? defaultBarcodeFormats;
+    late final StreamController<DecodedImage> controller;
+    var done = false;
+
+    controller = StreamController<DecodedImage>(
+      onListen: () {
+        channelReader.setBatchHandler(batchId, controller.add);
+        methodChannel.invokeMethod('decodeImages', {
+          'batchId': batchId,
+          'paths': paths,
+          'images': images,
+          'formats': formatsOrDefault.map((format) => format.toString().split('.')[1]).toList(growable: false),
+          'parallelism': parallelism,
+        }).catchError((error, stackTrace) {
+          controller.addError(error, stackTrace);
+        }).whenComplete(() {
+          done = true;
+          channelReader.setBatchHandler(batchId, null);
+          controller.close();
+        });
+      },
+      onCancel: () {
+        channelReader.setBatchHandler(batchId, null);
+        if (!done) {
+          return methodChannel.invokeMethod('cancelDecode', {'batchId': batchId}).catchError(_printError);
+        }
+        return null;
+      },
+    );
+    return controller.stream;
+  }
+
+  Map<String, dynamic>? _sessionArguments(int? sessionId) => sessionId == null ? null : {'sessionId': sessionId};
+
   void _printError(dynamic error, StackTrace stackTrace) {
     debugPrint("QR Mobile Vision received error: $error");
     debugPrintStack(stackTrace: stackTrace);
@@ -1,9 +1,19 @@
 import 'package:flutter/widgets.dart';
 import 'package:plugin_platform_interface/plugin_platform_interface.dart';
 import 'package:qr_mobile_vision/src/barcode_formats.dart';
+import 'package:qr_mobile_vision/src/barcode_payload.dart';
 import 'package:qr_mobile_vision/src/camera_direction.dart';
+import 'package:qr_mobile_vision/src/camera_state.dart';
+import 'package:qr_mobile_vision/src/candidate_cascade.dart';
+import 'package:qr_mobile_vision/src/capture_profile.dart';
+import 'package:qr_mobile_vision/src/decoded_image.dart';
+import 'package:qr_mobile_vision/src/evidence_capture.dart';
+import 'package:qr_mobile_vision/src/lens_preference.dart';
+import 'package:qr_mobile_vision/src/liveness_source.dart';
 import 'package:qr_mobile_vision/src/preview_details.dart';
 import 'package:qr_mobile_vision/src/qr_mobile_vision_method_channel.dart';
+import 'package:qr_mobile_vision/src/qr_result.dart';
+import 'package:qr_mobile_vision/src/read_filter.dart';
 
 abstract class QrMobileVisionPlatform extends PlatformInterface {
   /// Constructs a QrMobileVisionPlatform.
@@ -32,11 +42,74 @@ abstract class QrMobileVisionPlatform extends PlatformInterface {
     required ValueChanged<String?> qrCodeHandler,
     CameraDirection cameraDirection = CameraDirection.BACK,
     List<BarcodeFormats>? formats = defaultBarcodeFormats,
+    bool headless = false,
+    LensPreference lensPreference = LensPreference.DEFAULT,
+    ValueChanged<CameraStateEvent>? cameraStateHandler,
+    bool autoTorch = false,
+    ValueChanged<BarcodePayload>? payloadHandler,
+    ReadFilter? filter,
+    CaptureProfile captureProfile = CaptureProfile.standard,
+    CandidateCascade? candidateCascade,
+    EvidenceCapture? evidenceCapture,
+    ValueChanged<QrResult>? evidenceHandler,
+    Duration? heartbeatTimeout,
+    LivenessSource livenessSource = LivenessSource.HEARTBEAT,
   });
 
-  Future<void> toggleFlash();
+  /// Toggles the flash of the session with the given id, or of every running
+  /// session if [sessionId] is null.
+  Future<void> toggleFlash({int? sessionId});
 
-  Future<void> stop();
+  /// Stops the session with the given id, or every running session if
+  /// [sessionId] is null.
+  Future<void> stop({int? sessionId});
 
-  Future<void> heartbeat();
+  Future<void> heartbeat({int? sessionId});
+
+  /// Streams reads from every session, asking the native side for at most
+  /// [prefetch] reads at a time and only while the subscription isn't paused.
+  /// Reads that arrive in between wait in a native buffer of [bufferSize],
+  /// handled according to [overflowPolicy] once it is full.
+  ///
+  /// While this stream is listened to, reads are no longer passed to the
+  /// handlers given to [start].
+  Stream<QrResult> results({
+    int bufferSize = 16,
+    ResultOverflowPolicy overflowPolicy = ResultOverflowPolicy.DROP_OLDEST,
+    int prefetch = 4,
+  });
+
+  /// Counters for [results]: buffered, capacity, credits, delivered, dropped
+  /// and coalesced.
+  Future<Map<String, dynamic>> resultStreamStats();
+
+  /// How many reads each session's [ReadFilter] accepted and rejected, by
+  /// rule, keyed by session id. Only sessions started with a filter are
+  /// included.
+  Future<Map<String, dynamic>> filterStats({int? sessionId});
+
+  /// Frames each session's [CandidateCascade] looked at, skipped, cropped to
+  /// a region and audited, and how many audited frames held a code it would
+  /// have skipped, keyed by session id. Only sessions started with a cascade
+  /// are included.
+  Future<Map<String, dynamic>> cascadeStats({int? sessionId});
+
+  /// Keeps per-frame pipeline timings for the last [capacity] frames, or
+  /// stops recording them if [capacity] is 0.
+  Future<void> enableTraceLog({int capacity = 300});
+
+  /// Writes the recorded frame timings as a Chrome trace-event json file and
+  /// returns its path. Written to the app's cache directory unless [path] is
+  /// given.
+  Future<String?> dumpTraceLog({String? path});
+
+  /// Decodes still images given as file [paths] or encoded [images], emitting
+  /// one [DecodedImage] per image as they complete. Cancelling the
+  /// subscription cancels the images that haven't been started yet.
+  Stream<DecodedImage> decodeImages({
+    List<String>? paths,
+    List<Uint8List>? images,
+    List<BarcodeFormats>? formats = defaultBarcodeFormats,
+    int? parallelism,
+  });
 }
@@ -0,0 +1,50 @@
+//ignore_for_file: constant_identifier_names
+
+import 'package:qr_mobile_vision/src/barcode_payload.dart';
+
+/// What the native side gives up when reads arrive faster than a
+/// [QrMobileVision.results] listener asks for them.
+enum ResultOverflowPolicy {
+  /// Drop the oldest waiting read.
+  DROP_OLDEST,
+
+  /// Count repeats of a waiting read (same session and value) instead of
+  /// queueing them again; drop the oldest read when that isn't enough.
+  COALESCE,
+}
+
+/// A read delivered through [QrMobileVision.results].
+class QrResult {
+  QrResult(this.sessionId, this.data, {this.count = 1, this.dropped = 0, this.payload, this.evidencePath});
+
+  QrResult.fromMap(Map<dynamic, dynamic> map)
+      : sessionId = map['sessionId'],
+        data = map['data'],
+        count = map['count'] ?? 1,
+        dropped = map['dropped'] ?? 0,
+        payload = map['payload'] == null ? null : BarcodePayload.fromMap(map['data'], map['payload']),
+        evidencePath = map['evidencePath'];
+
+  /// Session the code was read by.
+  final int? sessionId;
+
+  final String? data;
+
+  /// How many times this value was read while it was waiting to be delivered,
+  /// when using [ResultOverflowPolicy.COALESCE].
+  final int count;
+
+  /// Total reads dropped by the native side since the stream was listened to.
+  final int dropped;
+
+  /// The parsed read, if its session was started with a payloadHandler.
+  final BarcodePayload? payload;
+
+  /// Where an image of the frame this was read from is being saved, if its
+  /// session was started with an [EvidenceCapture]. The file may not have
+  /// been written yet.
+  final String? evidencePath;
+
+  @override
+  String toString() => 'QrResult($sessionId, $data, count: $count, dropped: $dropped)';
+}
@@ -0,0 +1,41 @@
+import 'package:qr_mobile_vision/src/barcode_formats.dart';
+
+/// Rules a read has to pass on the native side before it is delivered, so
+/// that unwanted codes never cross the platform channel. Every rule that is
+/// set must pass. Android only.
+class ReadFilter {
+  const ReadFilter({
+    this.formats,
+    this.pattern,
+    this.minLength,
+    this.maxLength,
+    this.prefixes,
+    this.gs1Ais,
+  });
+
+  /// Formats to accept. Useful when the scanner is started with more formats
+  /// than a screen wants.
+  final List<BarcodeFormats>? formats;
+
+  /// A regular expression (java syntax) that the whole value must match.
+  final String? pattern;
+
+  final int? minLength;
+  final int? maxLength;
+
+  /// The value must start with one of these.
+  final List<String>? prefixes;
+
+  /// The value must be a GS1 element string holding all of these application
+  /// identifiers, e.g. `['01', '17']`.
+  final List<String>? gs1Ais;
+
+  Map<String, dynamic> toMap() => {
+        if (formats != null) 'formats': formats!.map((format) => format.name).toList(),
+        if (pattern != null) 'pattern': pattern,
+        if (minLength != null) 'minLength': minLength,
+        if (maxLength != null) 'maxLength': maxLength,
+        if (prefixes != null) 'prefixes': prefixes,
+        if (gs1Ais != null) 'gs1Ais': gs1Ais,
+      };
+}
@@ -7,11 +7,13 @@ void main() {
 
   MethodChannelQrMobileVision platform = MethodChannelQrMobileVision();
   const MethodChannel channel = MethodChannel('qr_mobile_vision');
+  final List<MethodCall> calls = [];
 
   setUp(() {
     TestDefaultBinaryMessengerBinding.instance.defaultBinaryMessenger.setMockMethodCallHandler(
       channel,
       (MethodCall methodCall) async {
+        calls.add(methodCall);
         switch (methodCall.method) {
           case "heartbeat":
           case "stop":
@@ -23,6 +25,7 @@ void main() {
               "surfaceHeight": 100,
               "textureId": 1,
               "surfaceOrientation": 270,
+              "sessionId": 1,
             };
         }
         throw PlatformException(code: "not_implemented");
@@ -32,10 +35,22 @@ void main() {
 
   tearDown(() {
     TestDefaultBinaryMessengerBinding.instance.defaultBinaryMessenger.setMockMethodCallHandler(channel, null);
+    calls.clear();
   });
 
   test('heartbeat', () async {
     await platform.heartbeat();
     // expect(await platform.getPlatformVersion(), '42');
   });
+
+  test('stop only targets the given session', () async {
+    final details = await platform.start(width: 100, height: 100, qrCodeHandler: (_) {});
+    expect(details.sessionId, 1);
+    expect(platform.channelReader.sessionHandlers.containsKey(1), isTrue);
+
+    await platform.stop(sessionId: details.sessionId);
+    expect(calls.last.method, 'stop');
+    expect(calls.last.arguments, {'sessionId': 1});
+    expect(platform.channelReader.sessionHandlers.containsKey(1), isFalse);
+  });
 }
@@ -1,4 +1,4 @@
-import 'package:flutter/src/foundation/basic_types.dart';
+import 'package:flutter/foundation.dart';
 import 'package:flutter_test/flutter_test.dart';
 import 'package:plugin_platform_interface/plugin_platform_interface.dart';
 import 'package:qr_mobile_vision/qr_mobile_vision.dart';
@@ -10,7 +10,7 @@ import 'package:qr_mobile_vision/src/qr_mobile_vision_platform_interface.dart';
 
 class MockQrMobileVisionPlatform with MockPlatformInterfaceMixin implements QrMobileVisionPlatform {
   @override
-  Future<void> heartbeat() async {
+  Future<void> heartbeat({int? sessionId}) async {
     return;
   }
 
@@ -21,17 +21,75 @@ class MockQrMobileVisionPlatform with MockPlatformInterfaceMixin implements QrMo
     required ValueChanged<String?> qrCodeHandler,
     CameraDirection cameraDirection = CameraDirection.BACK,
     List<BarcodeFormats>? formats = defaultBarcodeFormats,
+    bool headless = false,
+    LensPreference lensPreference = LensPreference.DEFAULT,
+    ValueChanged<CameraStateEvent>? cameraStateHandler,
+    bool autoTorch = false,
+    ValueChanged<BarcodePayload>? payloadHandler,
+    ReadFilter? filter,
+    CaptureProfile captureProfile = CaptureProfile.standard,
+    CandidateCascade? candidateCascade,
+    EvidenceCapture? evidenceCapture,
+    ValueChanged<QrResult>? evidenceHandler,
+    Duration? heartbeatTimeout,
+    LivenessSource livenessSource = LivenessSource.HEARTBEAT,
   }) async {
     return PreviewDetails(NativePreviewDetails(100, 100, 270, 1), 3);
   }
 
   @override
-  Future<void> stop() async {
+  Future<void> stop({int? sessionId}) async {
     return;
   }
 
   @override
-  Future<void> toggleFlash() async {
+  Stream<DecodedImage> decodeImages({
+    List<String>? paths,
+    List<Uint8List>? images,
+    List<BarcodeFormats>? formats = defaultBarcodeFormats,
+    int? parallelism,
+  }) {
+    return Stream.fromIterable([
+      for (var i = 0; i < (paths?.length ?? 0); ++i) DecodedImage(i, ['code$i'], ['QR_CODE'], null),
+    ]);
+  }
+
+  @override
+  Stream<QrResult> results({
+    int bufferSize = 16,
+    ResultOverflowPolicy overflowPolicy = ResultOverflowPolicy.DROP_OLDEST,
+    int prefetch = 4,
+  }) {
+    return Stream.value(QrResult(1, 'code'));
+  }
+
+  @override
+  Future<Map<String, dynamic>> resultStreamStats() async {
+    return {'dropped': 0};
+  }
+
+  @override
+  Future<Map<String, dynamic>> filterStats({int? sessionId}) async {
+    return {};
+  }
+
+  @override
+  Future<Map<String, dynamic>> cascadeStats({int? sessionId}) async {
+    return {};
+  }
+
+  @override
+  Future<void> enableTraceLog({int capacity = 300}) async {
+    return;
+  }
+
+  @override
+  Future<String?> dumpTraceLog({String? path}) async {
+    return path;
+  }
+
+  @override
+  Future<void> toggleFlash({int? sessionId}) async {
     return;
   }
 }
@@ -61,6 +119,12 @@ void main() {
       await QrMobileVision.stop();
     });
 
+    test('decodeImages', () async {
+      final decoded = await QrMobileVision.decodeImages(paths: ['a.jpg', 'b.jpg']).toList();
+      expect(decoded.map((image) => image.index), [0, 1]);
+      expect(decoded.first.values, ['code0']);
+    });
+
     test('start', () async {
       handler(String? code) => print(code);
       final details = await QrMobileVision.start(
@@ -75,6 +139,7 @@ void main() {
       assert(details.sdkInt == 3);
       assert(details.sensorOrientation == 270);
       assert(details.textureId == 1);
+      assert(details.sessionId == 1);
     });
   });
 }